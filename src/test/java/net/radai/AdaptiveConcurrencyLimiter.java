@@ -0,0 +1,136 @@
+package net.radai;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * limits how many connection attempts are in flight at once, adjusting the limit AIMD style: every attempt that
+ * completes within twice the best latency seen lately grows the limit by 1/limit (so by ~1 per limit's worth of
+ * attempts), and every overload signal ({@link java.net.BindException} - out of ephemeral ports,
+ * {@link java.net.ConnectException} - backlog full or nobody listening) cuts it in half. attempts that complete
+ * but too slowly leave the limit where it is.
+ * <br>
+ * overload signals tend to come in bursts (every attempt in flight fails the same way), so the limit is cut at most
+ * once per best-latency period, or a single storm would drive it straight down to minLimit.
+ * @author Radai Rosenblatt
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final double BACKOFF_RATIO = 0.5;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final int BASELINE_WINDOW = 1000; //samples before the best latency is re-learned
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private long bestLatencyNanos = Long.MAX_VALUE;
+    private long windowBestLatencyNanos = Long.MAX_VALUE;
+    private int windowSamples = 0;
+    private long lastBackoffNanos = System.nanoTime();
+    private final Meter overloads;
+    private final Meter backoffs;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, MetricRegistry metrics) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("need 1 <= minLimit (" + minLimit + ") <= initialLimit (" + initialLimit + ") <= maxLimit (" + maxLimit + ")");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.overloads = metrics.meter("limiter.overloads");
+        this.backoffs = metrics.meter("limiter.backoffs");
+        metrics.register("limiter.limit", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getLimit();
+            }
+        });
+        metrics.register("limiter.inFlight", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getInFlight();
+            }
+        });
+    }
+
+    /**
+     * blocks until the attempt is allowed to proceed. every acquire() has to be followed by exactly one of
+     * onSuccess(), onOverload() or onIgnore()
+     * @return start time of the attempt, to pass to onSuccess()
+     */
+    public synchronized long acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * the attempt went through. grows the limit if it was fast enough
+     */
+    public void onSuccess(long startNanos) {
+        onSuccess(startNanos, System.nanoTime());
+    }
+
+    /**
+     * the attempt went through at endNanos, but its permit is only given back now (after tearing it down, say)
+     */
+    public synchronized void onSuccess(long startNanos, long endNanos) {
+        long latencyNanos = endNanos - startNanos;
+        learnLatency(latencyNanos);
+        if (latencyNanos <= bestLatencyNanos * LATENCY_TOLERANCE) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        release();
+    }
+
+    /**
+     * the attempt failed because the kernel (ours or the server's) is overwhelmed. shrinks the limit
+     */
+    public synchronized void onOverload() {
+        overloads.mark();
+        long now = System.nanoTime();
+        long quietPeriod = bestLatencyNanos == Long.MAX_VALUE ? TimeUnit.MILLISECONDS.toNanos(1) : bestLatencyNanos;
+        if (now - lastBackoffNanos >= quietPeriod) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            lastBackoffNanos = now;
+            backoffs.mark();
+        }
+        release();
+    }
+
+    /**
+     * the attempt failed for reasons that say nothing about load. leaves the limit alone
+     */
+    public synchronized void onIgnore() {
+        release();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private void learnLatency(long latencyNanos) {
+        //the best latency is re-learned every window, so a baseline from a quieter time does not stick forever
+        windowBestLatencyNanos = Math.min(windowBestLatencyNanos, latencyNanos);
+        bestLatencyNanos = Math.min(bestLatencyNanos, latencyNanos);
+        if (++windowSamples >= BASELINE_WINDOW) {
+            bestLatencyNanos = windowBestLatencyNanos;
+            windowBestLatencyNanos = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package net.radai;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * bytes allocated per operation by the whole process, as counted by the jvm's per-thread allocation counters
+ * ({@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long[])}) summed over every live thread - the
+ * threads running a load loop, but also the transport's selector and worker threads, which is where grizzly builds
+ * the exceptions for failed connects. background threads (the metrics reporter, say) are counted too, so compare
+ * runs against each other rather than reading the numbers as absolutes. registers &lt;name&gt;.bytesPerOp, -1 if
+ * the jvm does not support allocation counting.
+ * <br>
+ * whatever a thread allocated is lost once it dies, so read this while the threads that do the work are alive.
+ * @author Radai Rosenblatt
+ */
+public class AllocationMeter {
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final Counting operations;
+    private final long operationsAtStart;
+    private final Map<Long, Long> allocatedAtStart = new HashMap<>(); //thread id to bytes, threads alive at construction
+
+    public AllocationMeter(String name, Counting operations, MetricRegistry metrics) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+            long[] ids = threadBean.getAllThreadIds();
+            long[] allocated = threadBean.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] >= 0) {
+                    allocatedAtStart.put(ids[i], allocated[i]);
+                }
+            }
+        } else {
+            threadBean = null;
+        }
+        this.operations = operations;
+        this.operationsAtStart = operations.getCount();
+        metrics.register(name + ".bytesPerOp", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getBytesPerOperation();
+            }
+        });
+    }
+
+    /**
+     * @return bytes allocated by all live threads since construction (all they ever allocated, for threads started
+     *         since), per operation since construction
+     */
+    public long getBytesPerOperation() {
+        if (threadBean == null) {
+            return -1;
+        }
+        long ops = operations.getCount() - operationsAtStart;
+        if (ops <= 0) {
+            return 0;
+        }
+        long[] ids = threadBean.getAllThreadIds();
+        long[] now = threadBean.getThreadAllocatedBytes(ids);
+        long allocated = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (now[i] < 0) { //-1 if the thread died in between
+                continue;
+            }
+            Long atStart = allocatedAtStart.get(ids[i]);
+            allocated += atStart == null ? now[i] : now[i] - atStart;
+        }
+        return allocated / ops;
+    }
+}
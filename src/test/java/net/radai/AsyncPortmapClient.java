@@ -0,0 +1,148 @@
+package net.radai;
+
+import org.dcache.xdr.XdrTransport;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * non-blocking connects and portmap GETPORT calls on top of a {@link SharedRpcClientFactory}, so a handful of threads
+ * can keep thousands of them in flight. the only place a caller ever blocks is on issuing an operation while
+ * maxInFlight operations are already outstanding - that is the backpressure. connects that are not established
+ * within timeoutMillis, and calls that get no reply within timeoutMillis, fail with a {@link TimeoutException}
+ * (and close the client), so neither a blackholed address nor a silent rpcbind can hold on to in-flight permits
+ * (and hang drain()) forever.
+ * @author Radai Rosenblatt
+ */
+public class AsyncPortmapClient {
+    private final SharedRpcClientFactory clientFactory;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService timer;
+
+    public AsyncPortmapClient(SharedRpcClientFactory clientFactory, int maxInFlight, long timeoutMillis, ScheduledExecutorService timer) {
+        this.clientFactory = clientFactory;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timeoutMillis = timeoutMillis;
+        this.timer = timer;
+    }
+
+    /**
+     * connects to the given address and disconnects again
+     */
+    public CompletableFuture<Void> connectAndClose(InetSocketAddress address) throws InterruptedException {
+        final SharedRpcClientFactory.Client client = newClient(address);
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        connect(client, address).whenComplete(new BiConsumer<XdrTransport, Throwable>() {
+            @Override
+            public void accept(XdrTransport transport, Throwable error) {
+                closeAndComplete(client, done, null, error);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * connects to rpcbind, asks for the port of the given program and disconnects
+     * @return the port, 0 if the program is not registered
+     */
+    public CompletableFuture<Integer> queryPort(InetSocketAddress rpcbindAddress, final int prog, final int vers, final int protocol) throws InterruptedException {
+        final SharedRpcClientFactory.Client client = newClient(rpcbindAddress);
+        final CompletableFuture<Integer> done = new CompletableFuture<>();
+        connect(client, rpcbindAddress)
+                .thenCompose(new Function<XdrTransport, CompletableFuture<Integer>>() {
+                    @Override
+                    public CompletableFuture<Integer> apply(XdrTransport transport) {
+                        return getPort(transport, prog, vers, protocol);
+                    }
+                })
+                .whenComplete(new BiConsumer<Integer, Throwable>() {
+                    @Override
+                    public void accept(Integer port, Throwable error) {
+                        closeAndComplete(client, done, port, error); //a timed out connect or call closes the client too
+                    }
+                });
+        return done;
+    }
+
+    /**
+     * GETPORT over an already connected transport, with the reply timeout. not subject to the in-flight limit
+     */
+    public CompletableFuture<Integer> getPort(XdrTransport transport, int prog, int vers, int protocol) {
+        return PortmapProtocol.callForInt(transport, PortmapProtocol.PROC_GETPORT, new PortmapProtocol.Mapping(prog, vers, protocol, 0), timeoutMillis, timer);
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * blocks until nothing is in flight
+     */
+    public void drain() throws InterruptedException {
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+    }
+
+    private SharedRpcClientFactory.Client newClient(InetSocketAddress address) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            return clientFactory.newClient(address);
+        } catch (Throwable t) {
+            inFlight.release();
+            throw t;
+        }
+    }
+
+    /**
+     * the client's connect, failed with a TimeoutException if it is not established within timeoutMillis. closing the
+     * client then closes the connection if it does get established later
+     */
+    private CompletableFuture<XdrTransport> connect(SharedRpcClientFactory.Client client, final InetSocketAddress address) {
+        final CompletableFuture<XdrTransport> connected = new CompletableFuture<>();
+        final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connected.completeExceptionally(new TimeoutException("not connected to " + address + " within " + timeoutMillis + " ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        client.connectAsync().whenComplete(new BiConsumer<XdrTransport, Throwable>() {
+            @Override
+            public void accept(XdrTransport transport, Throwable error) {
+                timeout.cancel(false);
+                if (error != null) {
+                    connected.completeExceptionally(error);
+                } else {
+                    connected.complete(transport);
+                }
+            }
+        });
+        return connected;
+    }
+
+    private <T> void closeAndComplete(SharedRpcClientFactory.Client client, final CompletableFuture<T> done, final T result, final Throwable error) {
+        client.closeAsync().whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable closeError) {
+                inFlight.release();
+                if (error != null) {
+                    done.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                } else if (closeError != null) {
+                    done.completeExceptionally(closeError);
+                } else {
+                    done.complete(result);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,226 @@
+package net.radai;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.dcache.xdr.portmap.GenericPortmapClient;
+import org.dcache.xdr.portmap.rpcb;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a caching front for {@link GenericPortmapClient#getPort(int, int, String)}. entries expire after a ttl,
+ * the cache is bounded (least recently used entries are evicted first), unregistered programs are cached
+ * as negative entries (with their own ttl) and concurrent misses on the same key are coalesced into a single
+ * rpc. lookups go over connections borrowed from an {@link OncRpcClientPool}.
+ * @author Radai Rosenblatt
+ */
+public class CachingPortmapResolver {
+    private final OncRpcClientPool pool;
+    private final InetAddress rpcbindAddress;
+    private final int rpcbindProtocol;
+    private final int rpcbindPort;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Map<Key, CachedAddress> cache;
+    private final ConcurrentMap<Key, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final Meter hits;
+    private final Meter negativeHits;
+    private final Meter misses;
+    private final Meter coalesced;
+    private final Meter evictions;
+
+    public CachingPortmapResolver(OncRpcClientPool pool, InetAddress rpcbindAddress, int rpcbindProtocol, int rpcbindPort,
+                                  long ttlMillis, long negativeTtlMillis, final int maxEntries, MetricRegistry metrics) {
+        this.pool = pool;
+        this.rpcbindAddress = rpcbindAddress;
+        this.rpcbindProtocol = rpcbindProtocol;
+        this.rpcbindPort = rpcbindPort;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.hits = metrics.meter("portmapCache.hits");
+        this.negativeHits = metrics.meter("portmapCache.negativeHits");
+        this.misses = metrics.meter("portmapCache.misses");
+        this.coalesced = metrics.meter("portmapCache.coalesced");
+        this.evictions = metrics.meter("portmapCache.evictions");
+        this.cache = new LinkedHashMap<Key, CachedAddress>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedAddress> eldest) {
+                if (size() > maxEntries) {
+                    evictions.mark();
+                    return true;
+                }
+                return false;
+            }
+        };
+        metrics.register("portmapCache.size", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                synchronized (cache) {
+                    return cache.size();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the universal address the program is registered at, or null if it is not registered
+     */
+    public String getPort(int prog, int vers, String netid) throws Exception {
+        Key key = new Key(prog, vers, netid);
+        long now = System.nanoTime();
+        CachedAddress entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        if (entry != null && now - entry.expiresAtNanos < 0) {
+            if (entry.uaddr == null) {
+                negativeHits.mark();
+            } else {
+                hits.mark();
+            }
+            return entry.uaddr;
+        }
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            //someone is already asking rpcbind the same question
+            coalesced.mark();
+            try {
+                return leader.get();
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            }
+        }
+        try {
+            //the previous leader may have filled the cache between our lookup and putIfAbsent
+            synchronized (cache) {
+                entry = cache.get(key);
+            }
+            if (entry != null && System.nanoTime() - entry.expiresAtNanos < 0) {
+                if (entry.uaddr == null) {
+                    negativeHits.mark();
+                } else {
+                    hits.mark();
+                }
+                mine.complete(entry.uaddr);
+                return entry.uaddr;
+            }
+            misses.mark();
+            String uaddr = put(key, query(key)); //normalized, so a miss answers the same as the hits after it
+            mine.complete(uaddr);
+            return uaddr;
+        } catch (Throwable t) {
+            mine.completeExceptionally(t);
+            throw rethrow(t);
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * fills the cache from a single DUMP call
+     * @return the number of entries loaded
+     */
+    public int warmUp() throws Exception {
+        List<rpcb> registrations;
+        OncRpcClientPool.Lease lease = pool.borrow(rpcbindAddress, rpcbindProtocol, rpcbindPort);
+        try {
+            registrations = new GenericPortmapClient(lease.getTransport()).dump();
+        } catch (Throwable t) {
+            lease.invalidate();
+            throw rethrow(t);
+        } finally {
+            lease.close();
+        }
+        for (rpcb registration : registrations) {
+            put(new Key(registration.getProg(), registration.getVers(), registration.getNetid()), registration.getAddr());
+        }
+        return registrations.size();
+    }
+
+    public void invalidate(int prog, int vers, String netid) {
+        synchronized (cache) {
+            cache.remove(new Key(prog, vers, netid));
+        }
+    }
+
+    private String query(Key key) throws Exception {
+        OncRpcClientPool.Lease lease = pool.borrow(rpcbindAddress, rpcbindProtocol, rpcbindPort);
+        try {
+            return new GenericPortmapClient(lease.getTransport()).getPort(key.prog, key.vers, key.netid);
+        } catch (Throwable t) {
+            lease.invalidate();
+            throw rethrow(t);
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * @param uaddr as rpcbind answered - "" (rpcbind v3/v4) or null for a program that is not registered
+     * @return what was cached: the address, or null for a program that is not registered
+     */
+    private String put(Key key, String uaddr) {
+        boolean negative = uaddr == null || uaddr.isEmpty();
+        CachedAddress entry = new CachedAddress(negative ? null : uaddr, System.nanoTime() + (negative ? negativeTtlNanos : ttlNanos));
+        synchronized (cache) {
+            cache.put(key, entry);
+        }
+        return entry.uaddr;
+    }
+
+    private static Exception rethrow(Throwable t) {
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return (Exception) t;
+    }
+
+    private static class CachedAddress {
+        private final String uaddr; //null means negative entry
+        private final long expiresAtNanos;
+
+        private CachedAddress(String uaddr, long expiresAtNanos) {
+            this.uaddr = uaddr;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private static final class Key {
+        private final int prog;
+        private final int vers;
+        private final String netid;
+
+        private Key(int prog, int vers, String netid) {
+            this.prog = prog;
+            this.vers = vers;
+            this.netid = netid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return prog == other.prog && vers == other.vers && netid.equals(other.netid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * prog + vers) + netid.hashCode();
+        }
+    }
+}
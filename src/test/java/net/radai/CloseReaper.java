@@ -0,0 +1,196 @@
+package net.radai;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.dcache.xdr.OncRpcClient;
+import org.glassfish.grizzly.GrizzlyFuture;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * takes transports and rpc clients off the hands of the threads that used them and closes them in the background,
+ * so a load loop can go on to its next connect instead of waiting for a shutdown. reaper threads pick up batches of
+ * up to batchSize: transports in a batch are all told to shut down first and only then waited for, so their
+ * shutdowns overlap. rpc clients only have a blocking close() and are closed one by one.
+ * <br>
+ * at most queueDepth resources wait to be closed, beyond that reap() blocks - otherwise a reaper that cannot keep
+ * up would turn into the leak it is supposed to prevent. keep it small for transports (and rpc clients, which own one):
+ * each one waiting still holds its selector threads and an epoll fd. every resource handed over is counted exactly
+ * once, in the successfulCloses or failedCloses counter handed over with it, by the time close() returns.
+ * @author Radai Rosenblatt
+ */
+public class CloseReaper implements Closeable {
+    private final BlockingQueue<Pending> queue;
+    private final int batchSize;
+    private final Thread[] reapers;
+    private final AtomicInteger inProgress = new AtomicInteger(0);
+    private final AtomicInteger enqueuing = new AtomicInteger(0); //reap() calls between their closed check and put()
+    private final Timer closeLatency;
+    private volatile boolean closed = false;
+
+    public CloseReaper(int queueDepth, int batchSize, int reaperThreads, MetricRegistry metrics) {
+        this.queue = new ArrayBlockingQueue<>(queueDepth);
+        this.batchSize = batchSize;
+        this.closeLatency = metrics.timer("reaper.closeLatency"); //from hand-over to closed
+        metrics.register("reaper.backlog", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getBacklog();
+            }
+        });
+        reapers = new Thread[reaperThreads];
+        for (int i = 0; i < reaperThreads; i++) {
+            reapers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    reapLoop();
+                }
+            }, "close-reaper-" + i);
+            reapers[i].setDaemon(true);
+            reapers[i].start();
+        }
+    }
+
+    /**
+     * hands the transport over to be shut down, blocking if the backlog is full
+     */
+    public void reap(TCPNIOTransport transport, Counter successfulCloses, Counter failedCloses) throws InterruptedException {
+        enqueue(new Pending(transport, null, successfulCloses, failedCloses));
+    }
+
+    /**
+     * hands the client over to be closed, blocking if the backlog is full
+     */
+    public void reap(OncRpcClient client, Counter successfulCloses, Counter failedCloses) throws InterruptedException {
+        enqueue(new Pending(null, client, successfulCloses, failedCloses));
+    }
+
+    /**
+     * @return resources handed over but not closed yet
+     */
+    public int getBacklog() {
+        return queue.size() + inProgress.get();
+    }
+
+    /**
+     * closes everything still in the backlog, then stops the reaper threads. nothing may be handed over after this
+     */
+    @Override
+    public void close() {
+        closed = true;
+        //a reap() that got past its closed check may still be putting - wait for it (reapers are still draining)
+        while (enqueuing.get() > 0) {
+            Thread.yield();
+        }
+        for (Thread reaper : reapers) {
+            try {
+                reaper.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        //whatever got put after the reapers saw an empty queue
+        List<Pending> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        if (!leftovers.isEmpty()) {
+            reapBatch(leftovers);
+        }
+    }
+
+    private void enqueue(Pending pending) throws InterruptedException {
+        enqueuing.incrementAndGet();
+        try {
+            if (closed) {
+                throw new IllegalStateException("reaper is closed");
+            }
+            queue.put(pending);
+        } finally {
+            enqueuing.decrementAndGet();
+        }
+    }
+
+    private void reapLoop() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (true) {
+            if (queue.isEmpty() && closed) {
+                return;
+            }
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS); //so close() is noticed
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            inProgress.addAndGet(batch.size());
+            reapBatch(batch);
+            inProgress.addAndGet(-batch.size());
+            batch.clear();
+        }
+    }
+
+    private void reapBatch(List<Pending> batch) {
+        for (Pending pending : batch) {
+            if (pending.transport != null) {
+                try {
+                    pending.shutdown = pending.transport.shutdown(); //dont wait yet
+                } catch (Throwable t) {
+                    pending.failure = t;
+                }
+            }
+        }
+        for (Pending pending : batch) {
+            Throwable failure = pending.failure;
+            if (failure == null) {
+                try {
+                    if (pending.shutdown != null) {
+                        pending.shutdown.get(); //block
+                    } else {
+                        pending.client.close();
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+            closeLatency.update(System.nanoTime() - pending.handedOverNanos, TimeUnit.NANOSECONDS);
+            if (failure == null) {
+                ConnectionTracker.GLOBAL.closed(pending.transport != null ? pending.transport : pending.client);
+                pending.successfulCloses.inc(); //successful close
+            } else {
+                pending.failedCloses.inc();
+                System.err.println("while trying to close " + (pending.transport != null ? "transport" : "rpcClient"));
+                failure.printStackTrace();
+            }
+        }
+    }
+
+    private static class Pending {
+        private final TCPNIOTransport transport;
+        private final OncRpcClient client;
+        private final Counter successfulCloses;
+        private final Counter failedCloses;
+        private final long handedOverNanos = System.nanoTime();
+        private GrizzlyFuture<?> shutdown;
+        private Throwable failure;
+
+        private Pending(TCPNIOTransport transport, OncRpcClient client, Counter successfulCloses, Counter failedCloses) {
+            this.transport = transport;
+            this.client = client;
+            this.successfulCloses = successfulCloses;
+            this.failedCloses = failedCloses;
+        }
+    }
+}
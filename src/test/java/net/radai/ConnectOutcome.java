@@ -0,0 +1,54 @@
+package net.radai;
+
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * what became of a connect (or rpc) attempt, for the load loops to branch on instead of rethrowing and walking
+ * exception chains.
+ * @author Radai Rosenblatt
+ */
+public enum ConnectOutcome {
+    OK,
+    /** no local port to bind to - ephemeral port exhaustion */
+    BIND_FAILED,
+    /** nobody listening, or backlog full */
+    REFUSED,
+    TIMEOUT,
+    OTHER;
+
+    private static final int MAX_DEPTH = 8; //grizzly and oncrpc4j wrap at most 2-3 deep
+    /**
+     * strerror(ETIMEDOUT). the jdk turns a connect that timed out in the kernel into a plain ConnectException, there is
+     * no subtype to tell it apart from a refusal by, so this is the one place the message has to be looked at
+     */
+    private static final String ETIMEDOUT_MESSAGE = "Connection timed out";
+
+    /**
+     * classifies a failure by the type of the first cause (up to a few levels deep) that means something.
+     * allocates nothing
+     */
+    public static ConnectOutcome classify(Throwable failure) {
+        Throwable cause = failure;
+        for (int depth = 0; cause != null && depth < MAX_DEPTH; depth++) {
+            if (cause instanceof BindException) {
+                return BIND_FAILED;
+            }
+            if (cause instanceof SocketTimeoutException || cause instanceof TimeoutException || cause instanceof InterruptedByTimeoutException) {
+                return TIMEOUT;
+            }
+            if (cause instanceof ConnectException) {
+                return ETIMEDOUT_MESSAGE.equals(cause.getMessage()) ? TIMEOUT : REFUSED;
+            }
+            Throwable next = cause.getCause();
+            if (next == cause) {
+                break;
+            }
+            cause = next;
+        }
+        return OTHER;
+    }
+}
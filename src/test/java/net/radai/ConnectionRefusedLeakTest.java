@@ -7,15 +7,15 @@ import com.codahale.metrics.MetricRegistry;
 import org.dcache.xdr.IpProtocolType;
 import org.dcache.xdr.OncRpcClient;
 import org.dcache.xdr.XdrTransport;
+import org.glassfish.grizzly.Connection;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
 import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.net.BindException;
-import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.HashSet;
@@ -25,12 +25,15 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author Radai Rosenblatt
  */
 public class ConnectionRefusedLeakTest {
     private static final int N_THREADS = 10;
+    private static final long TRACKER_OPEN_MILLIS = Long.getLong("tracker.openMillis", TimeUnit.SECONDS.toMillis(10));
+    private static final int REAPER_BACKLOG = 32; //transports waiting to be closed each still hold selector threads and an epoll fd
     private static volatile boolean die = false;
     private static volatile Throwable causeOfDeath = null;
 
@@ -47,6 +50,8 @@ public class ConnectionRefusedLeakTest {
 
     @Before
     public void setup() throws Throwable {
+        die = false;
+        causeOfDeath = null;
         localhostAddress = InetAddress.getByName("127.0.0.1");
 //        try (OncRpcClient rpcClient = new OncRpcClient(localhostAddress, IpProtocolType.TCP, 111)) {
 //            XdrTransport transport = rpcClient.connect();
@@ -60,10 +65,14 @@ public class ConnectionRefusedLeakTest {
 //            }
 //            throw t;
 //        }
+        new ProcessResourceGauges(metrics, 6666); //fds, epoll instances, threads and sockets to the refusing port
         reporter = ConsoleReporter.forRegistry(metrics)
                 .convertRatesTo(TimeUnit.SECONDS)
                 .convertDurationsTo(TimeUnit.MILLISECONDS)
                 .build();
+        if (ConnectionTracker.GLOBAL.isEnabled()) {
+            ConnectionTracker.GLOBAL.registerMetrics(metrics); //-Dtracker.sampleRate=...
+        }
         reporter.start(10, TimeUnit.SECONDS);
     }
 
@@ -72,6 +81,9 @@ public class ConnectionRefusedLeakTest {
         if (reporter != null) {
             reporter.stop();
         }
+        if (ConnectionTracker.GLOBAL.isEnabled()) {
+            ConnectionTracker.GLOBAL.printReport(System.err, TRACKER_OPEN_MILLIS);
+        }
     }
 
     @Test
@@ -108,6 +120,214 @@ public class ConnectionRefusedLeakTest {
         throw causeOfDeath;
     }
 
+    /**
+     * testLeakWithOncrpc4j for a fixed 10 seconds, with refused clients closed by a close reaper. every client must
+     * still be accounted for as closed, successfully, once the reaper is done
+     */
+    @Test
+    public void testNoLeakWithOncrpc4jAndCloseReaper() throws Throwable {
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        Set<Future<Void>> futures = new HashSet<>();
+        InetSocketAddress inetSocketAddress = new InetSocketAddress(localhostAddress, 6666);
+        try (CloseReaper reaper = new CloseReaper(REAPER_BACKLOG, REAPER_BACKLOG, 2, metrics)) {
+            for (int i = 0; i < N_THREADS; i++) {
+                futures.add(executor.submit(new Oncrpc4jConnectTask(inetSocketAddress, requests, bindFailures, connectionsRefused, successfulOpens, failedOpens, successfulCloses, failedCloses, 0, null, reaper)));
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            die = true;
+            for (Future<Void> future : futures) {
+                future.get(); //block
+            }
+        } //drains the backlog
+        executor.shutdown();
+        reporter.report();
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+        Assert.assertEquals("attempts vs. closes", successfulOpens.getCount() + failedOpens.getCount(), successfulCloses.getCount() + failedCloses.getCount());
+        Assert.assertEquals("failed closes", 0, failedCloses.getCount());
+    }
+
+    /**
+     * same as testLeakWithOncrpc4j, except all clients share a single transport.
+     * run with -Dio.strategy=same|worker|leader|dynamic to pick its io strategy
+     */
+    @Test
+    public void testLeakWithSharedOncrpc4j() throws Throwable {
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        Set<Future<Void>> futures = new HashSet<>();
+        InetSocketAddress inetSocketAddress = new InetSocketAddress(localhostAddress, 6666);
+        try (SharedRpcClientFactory clientFactory = new SharedRpcClientFactory(SharedTcpTransport.ioStrategyFor(System.getProperty("io.strategy", "same")))) {
+            for (int i = 0; i < N_THREADS; i++) {
+                Future<Void> future = executor.submit(new SharedOncrpc4jConnectTask(clientFactory, inetSocketAddress, requests, bindFailures, connectionsRefused, successfulOpens, failedOpens, successfulCloses, failedCloses));
+                futures.add(future);
+            }
+            for (Future<Void> future : futures) {
+                future.get(); //block
+            }
+            Assert.assertEquals("clients left open", 1, clientFactory.getRefCount());
+        }
+        Thread.sleep(1000); //let everything calm down
+        reporter.report();
+        throw causeOfDeath;
+    }
+
+    /**
+     * testLeakWithGrizzly from 64 threads behind an adaptive concurrency limiter. since every attempt is refused,
+     * the limiter should back off all the way down instead of letting every thread hammer the port
+     */
+    @Test
+    public void testAdaptiveLimiterBacksOffOnRefusals() throws Throwable {
+        int threads = 64;
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(N_THREADS, 1, threads, metrics);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Set<Future<Void>> futures = new HashSet<>();
+        InetSocketAddress inetSocketAddress = new InetSocketAddress(localhostAddress, 6666);
+        for (int i = 0; i < threads; i++) {
+            Future<Void> future = executor.submit(new GrizzlyConnectTask(inetSocketAddress, requests, bindFailures, connectionsRefused, successfulOpens, failedOpens, successfulCloses, failedCloses, 0, limiter, null));
+            futures.add(future);
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+        int limitUnderRefusals = limiter.getLimit();
+        die = true;
+        for (Future<Void> future : futures) {
+            future.get(); //block
+        }
+        executor.shutdown();
+        reporter.report();
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+        Assert.assertEquals("limit under refusals", 1, limitUnderRefusals);
+        Assert.assertEquals("permits left in flight", 0, limiter.getInFlight());
+    }
+
+    /**
+     * testLeakWithGrizzly behind a circuit breaker. after the first refusals only half-open probes should reach the
+     * network, everything else failing fast
+     */
+    @Test
+    public void testCircuitBreakerWithGrizzly() throws Throwable {
+        final EndpointCircuitBreaker breaker = new EndpointCircuitBreaker(1, 100, TimeUnit.SECONDS.toMillis(1), metrics);
+        runBehindCircuitBreaker(breaker, new Callable<Callable<Void>>() {
+            @Override
+            public Callable<Void> call() throws Exception {
+                return new GrizzlyConnectTask(new InetSocketAddress(localhostAddress, 6666), requests, bindFailures, connectionsRefused, successfulOpens, failedOpens, successfulCloses, failedCloses, 0, null, breaker);
+            }
+        });
+    }
+
+    /**
+     * testLeakWithOncrpc4j behind a circuit breaker, same expectations as testCircuitBreakerWithGrizzly
+     */
+    @Test
+    public void testCircuitBreakerWithOncrpc4j() throws Throwable {
+        final EndpointCircuitBreaker breaker = new EndpointCircuitBreaker(1, 100, TimeUnit.SECONDS.toMillis(1), metrics);
+        runBehindCircuitBreaker(breaker, new Callable<Callable<Void>>() {
+            @Override
+            public Callable<Void> call() throws Exception {
+                return new Oncrpc4jConnectTask(new InetSocketAddress(localhostAddress, 6666), requests, bindFailures, connectionsRefused, successfulOpens, failedOpens, successfulCloses, failedCloses, 0, breaker, null);
+            }
+        });
+    }
+
+    private void runBehindCircuitBreaker(EndpointCircuitBreaker breaker, Callable<Callable<Void>> taskFactory) throws Throwable {
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        Set<Future<Void>> futures = new HashSet<>();
+        for (int i = 0; i < N_THREADS; i++) {
+            futures.add(executor.submit(taskFactory.call()));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+        die = true;
+        for (Future<Void> future : futures) {
+            future.get(); //block
+        }
+        executor.shutdown();
+        reporter.report();
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+        InetSocketAddress address = new InetSocketAddress(localhostAddress, 6666);
+        Assert.assertNotEquals(EndpointCircuitBreaker.State.CLOSED, breaker.getState(address));
+        //at most one attempt per thread before the circuit opened, and one per probe since
+        long probes = metrics.meter("breaker.probes").getCount();
+        Assert.assertTrue("too many refusals: " + connectionsRefused.getCount(), connectionsRefused.getCount() <= probes + N_THREADS);
+        Assert.assertTrue("nothing failed fast", metrics.meter("breaker.fastFails").getCount() > 0);
+    }
+
+    /**
+     * refusals on a shared transport, classified the old way (blocking on a future, unwrapping the ExecutionException,
+     * rethrowing) vs. through a reusable completion handler that hands back a {@link ConnectOutcome}.
+     * reports bytes allocated per attempt for both - by the whole process, since the refusal itself is built on
+     * grizzly's selector threads
+     */
+    @Test
+    public void benchmarkRefusalsWithTypedOutcomes() throws Throwable {
+        InetSocketAddress inetSocketAddress = new InetSocketAddress(localhostAddress, 6666);
+        try (SharedTcpTransport sharedTransport = new SharedTcpTransport(SharedTcpTransport.ioStrategyFor(System.getProperty("io.strategy", "same")))) {
+            long rethrown = runSharedGrizzlyRefusals(sharedTransport, inetSocketAddress, false);
+            long typed = runSharedGrizzlyRefusals(sharedTransport, inetSocketAddress, true);
+            reporter.report();
+            System.err.println(String.format("%-20s %16s", "classification", "bytes/attempt"));
+            System.err.println(String.format("%-20s %16d", "rethrown", rethrown));
+            System.err.println(String.format("%-20s %16d", "typed", typed));
+        }
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+    }
+
+    /**
+     * @return bytes allocated per attempt, process-wide
+     */
+    private long runSharedGrizzlyRefusals(SharedTcpTransport sharedTransport, InetSocketAddress address, boolean typed) throws Exception {
+        die = false;
+        Meter attempts = new Meter();
+        AllocationMeter allocations = new AllocationMeter(typed ? "typed" : "rethrown", attempts, metrics);
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        Set<Future<Void>> futures = new HashSet<>();
+        for (int i = 0; i < N_THREADS; i++) {
+            futures.add(executor.submit(new SharedGrizzlyConnectTask(sharedTransport, address, typed, allocations, attempts, bindFailures, connectionsRefused)));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+        long bytesPerAttempt = allocations.getBytesPerOperation(); //while the threads are still alive
+        die = true;
+        for (Future<Void> future : futures) {
+            future.get(); //block
+        }
+        executor.shutdown();
+        return bytesPerAttempt;
+    }
+
+    /**
+     * how fast raw nio gets refused, as a ceiling for the grizzly and oncrpc4j refusal paths
+     */
+    @Test
+    public void benchmarkNioConnectEngine() throws Throwable {
+        DisconnectLeakTest.runNioConnectEngine(new InetSocketAddress(localhostAddress, 6666), metrics);
+        reporter.report();
+    }
+
+    /**
+     * @return true if the breaker fails the endpoint fast, once the open circuit has been waited out (for a while -
+     *         no longer than 100 ms, so that die is noticed). a fast fail is neither an open attempt nor a close, it
+     *         is only metered (as breaker.fastFails, by the breaker)
+     */
+    private static boolean failedFast(EndpointCircuitBreaker breaker, InetSocketAddress address) {
+        if (breaker == null) {
+            return false;
+        }
+        try {
+            breaker.checkAllowed(address);
+            return false;
+        } catch (EndpointCircuitBreaker.OpenCircuitException e) {
+            //0 while a probe is in flight, in which case just back off a little
+            long waitNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), breaker.nanosUntilRetry(address));
+            LockSupport.parkNanos(Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(100)));
+            return true;
+        }
+    }
+
     private static class GrizzlyConnectTask implements Callable<Void> {
         private final InetSocketAddress address;
         private final Meter requests;
@@ -118,8 +338,18 @@ public class ConnectionRefusedLeakTest {
         private final Counter successfulCloses;
         private final Counter failedCloses;
         private final long sleepMillis;
+        private final AdaptiveConcurrencyLimiter limiter;
+        private final EndpointCircuitBreaker breaker;
 
         public GrizzlyConnectTask(InetSocketAddress address, Meter requests, Meter bindFailures, Meter connectionsRefused, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses, long sleepMillis) {
+            this(address, requests, bindFailures, connectionsRefused, successfulOpens, failedOpens, successfulCloses, failedCloses, sleepMillis, null, null);
+        }
+
+        /**
+         * @param limiter what to acquire a permit from before every connect, null to connect as fast as possible
+         * @param breaker what to check before building a transport and connecting, null to always connect
+         */
+        public GrizzlyConnectTask(InetSocketAddress address, Meter requests, Meter bindFailures, Meter connectionsRefused, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses, long sleepMillis, AdaptiveConcurrencyLimiter limiter, EndpointCircuitBreaker breaker) {
             this.address = address;
             this.requests = requests;
             this.bindFailures = bindFailures;
@@ -129,6 +359,8 @@ public class ConnectionRefusedLeakTest {
             this.successfulCloses = successfulCloses;
             this.failedCloses = failedCloses;
             this.sleepMillis = sleepMillis;
+            this.limiter = limiter;
+            this.breaker = breaker;
         }
 
         @Override
@@ -137,25 +369,39 @@ public class ConnectionRefusedLeakTest {
                 if (sleepMillis > 0) {
                     Thread.sleep(sleepMillis);
                 }
+                if (failedFast(breaker, address)) {
+                    continue;
+                }
                 TCPNIOTransport transport = null;
                 boolean opened = false;
+                boolean overloaded = false;
+                long started = limiter != null ? limiter.acquire() : 0;
+                long connected = 0;
                 try {
                     transport = TCPNIOTransportBuilder.newInstance().setIOStrategy(SameThreadIOStrategy.getInstance()).build();
+                    ConnectionTracker.GLOBAL.track(transport, address);
                     transport.start();
                     transport.connect(address).get(); //block
+                    connected = System.nanoTime();
                     opened = true;
                     successfulOpens.inc(); //successful open
                     requests.mark();
+                    if (breaker != null) {
+                        breaker.onSuccess(address);
+                    }
                 } catch (Throwable t) {
-                    //noinspection ThrowableResultOfMethodCallIgnored
-                    Throwable root = Util.getRootCause(t);
-                    if (root instanceof BindException) {
-                        bindFailures.mark(); //ephemeral port exhaustion.
-                        continue;
+                    if (breaker != null) {
+                        breaker.onFailure(address, t);
                     }
-                    if (root instanceof ConnectException && "Connection refused".equals(root.getMessage())) {
-                        connectionsRefused.mark();
-                        continue; //expected output
+                    switch (ConnectOutcome.classify(t)) {
+                        case BIND_FAILED:
+                            bindFailures.mark(); //ephemeral port exhaustion.
+                            overloaded = true;
+                            continue;
+                        case REFUSED:
+                            connectionsRefused.mark();
+                            overloaded = true;
+                            continue; //expected output
                     }
                     causeOfDeath = t;
                     die = true;
@@ -167,6 +413,7 @@ public class ConnectionRefusedLeakTest {
                         //COMMENT TO LEAK
                         try {
                             transport.shutdown().get(); //block
+                            ConnectionTracker.GLOBAL.closed(transport);
                             successfulCloses.inc(); //successful close
                         } catch (Throwable t) {
                             failedCloses.inc();
@@ -177,6 +424,16 @@ public class ConnectionRefusedLeakTest {
                         //no transport == successful close
                         successfulCloses.inc();
                     }
+                    if (limiter != null) {
+                        //only once the transport (and its threads) is gone, so the limit bounds live transports
+                        if (opened) {
+                            limiter.onSuccess(started, connected);
+                        } else if (overloaded) {
+                            limiter.onOverload();
+                        } else {
+                            limiter.onIgnore();
+                        }
+                    }
                 }
             }
             return null;
@@ -193,8 +450,18 @@ public class ConnectionRefusedLeakTest {
         private final Counter successfulCloses;
         private final Counter failedCloses;
         private final long sleepMillis;
+        private final EndpointCircuitBreaker breaker;
+        private final CloseReaper reaper;
 
         public Oncrpc4jConnectTask(InetSocketAddress address, Meter requests, Meter bindFailures, Meter connectionsRefused, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses, long sleepMillis) {
+            this(address, requests, bindFailures, connectionsRefused, successfulOpens, failedOpens, successfulCloses, failedCloses, sleepMillis, null, null);
+        }
+
+        /**
+         * @param breaker what to check before creating a client and connecting, null to always connect
+         * @param reaper what to hand clients over to for closing, null to close them in-line
+         */
+        public Oncrpc4jConnectTask(InetSocketAddress address, Meter requests, Meter bindFailures, Meter connectionsRefused, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses, long sleepMillis, EndpointCircuitBreaker breaker, CloseReaper reaper) {
             this.address = address;
             this.requests = requests;
             this.bindFailures = bindFailures;
@@ -204,6 +471,8 @@ public class ConnectionRefusedLeakTest {
             this.successfulCloses = successfulCloses;
             this.failedCloses = failedCloses;
             this.sleepMillis = sleepMillis;
+            this.breaker = breaker;
+            this.reaper = reaper;
         }
 
         @Override
@@ -212,24 +481,105 @@ public class ConnectionRefusedLeakTest {
                 if (sleepMillis > 0) {
                     Thread.sleep(sleepMillis);
                 }
+                if (failedFast(breaker, address)) {
+                    continue;
+                }
                 OncRpcClient rpcClient = null;
                 boolean opened = false;
                 try {
                     rpcClient = new OncRpcClient(address, IpProtocolType.TCP);
+                    ConnectionTracker.GLOBAL.track(rpcClient, address);
                     XdrTransport transport = rpcClient.connect();
                     opened = true;
                     successfulOpens.inc(); //successful open
                     requests.mark();
+                    if (breaker != null) {
+                        breaker.onSuccess(address);
+                    }
                 } catch (Throwable t) {
-                    //noinspection ThrowableResultOfMethodCallIgnored
-                    Throwable root = Util.getRootCause(t);
-                    if (root instanceof BindException) {
-                        bindFailures.mark(); //ephemeral port exhaustion.
-                        continue;
+                    if (breaker != null) {
+                        breaker.onFailure(address, t);
                     }
-                    if (root instanceof ConnectException && "Connection refused".equals(root.getMessage())) {
-                        connectionsRefused.mark();
-                        continue; //expected output
+                    switch (ConnectOutcome.classify(t)) {
+                        case BIND_FAILED:
+                            bindFailures.mark(); //ephemeral port exhaustion.
+                            continue;
+                        case REFUSED:
+                            connectionsRefused.mark();
+                            continue; //expected output
+                    }
+                    causeOfDeath = t;
+                    die = true;
+                } finally {
+                    if (!opened) {
+                        failedOpens.inc();
+                    }
+                    if (rpcClient != null && reaper != null) {
+                        reaper.reap(rpcClient, successfulCloses, failedCloses); //counted once closed
+                    } else if (rpcClient != null) {
+                        //COMMENT TO LEAK
+                        try {
+                            rpcClient.close();
+                            ConnectionTracker.GLOBAL.closed(rpcClient);
+                            successfulCloses.inc(); //successful close
+                        } catch (Throwable t) {
+                            failedCloses.inc();
+                            System.err.println("while trying to close rpcClient");
+                            t.printStackTrace();
+                        }
+                    } else {
+                        //no client == successful close (because never opened)
+                        successfulCloses.inc();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class SharedOncrpc4jConnectTask implements Callable<Void> {
+        private final SharedRpcClientFactory clientFactory;
+        private final InetSocketAddress address;
+        private final Meter requests;
+        private final Meter bindFailures;
+        private final Meter connectionsRefused;
+        private final Counter successfulOpens;
+        private final Counter failedOpens;
+        private final Counter successfulCloses;
+        private final Counter failedCloses;
+
+        public SharedOncrpc4jConnectTask(SharedRpcClientFactory clientFactory, InetSocketAddress address, Meter requests, Meter bindFailures, Meter connectionsRefused, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+            this.clientFactory = clientFactory;
+            this.address = address;
+            this.requests = requests;
+            this.bindFailures = bindFailures;
+            this.connectionsRefused = connectionsRefused;
+            this.successfulOpens = successfulOpens;
+            this.failedOpens = failedOpens;
+            this.successfulCloses = successfulCloses;
+            this.failedCloses = failedCloses;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            while (!die) {
+                SharedRpcClientFactory.Client rpcClient = null;
+                boolean opened = false;
+                try {
+                    rpcClient = clientFactory.newClient(address);
+                    ConnectionTracker.GLOBAL.track(rpcClient, address);
+                    XdrTransport transport = rpcClient.connect();
+                    opened = true;
+                    successfulOpens.inc(); //successful open
+                    requests.mark();
+                } catch (Throwable t) {
+                    switch (ConnectOutcome.classify(t)) {
+                        case BIND_FAILED:
+                            bindFailures.mark(); //ephemeral port exhaustion.
+                            continue;
+                        case REFUSED:
+                            connectionsRefused.mark();
+                            continue; //expected output
                     }
                     causeOfDeath = t;
                     die = true;
@@ -241,6 +591,7 @@ public class ConnectionRefusedLeakTest {
                         //COMMENT TO LEAK
                         try {
                             rpcClient.close();
+                            ConnectionTracker.GLOBAL.closed(rpcClient);
                             successfulCloses.inc(); //successful close
                         } catch (Throwable t) {
                             failedCloses.inc();
@@ -256,4 +607,67 @@ public class ConnectionRefusedLeakTest {
             return null;
         }
     }
+
+    private static class SharedGrizzlyConnectTask implements Callable<Void> {
+        private final SharedTcpTransport transport;
+        private final InetSocketAddress address;
+        private final boolean typed;
+        private final AllocationMeter allocations;
+        private final Meter attempts;
+        private final Meter bindFailures;
+        private final Meter connectionsRefused;
+
+        /**
+         * @param typed true to connect through a reusable {@link SharedTcpTransport.ConnectAttempt}, false to block
+         *              on a future and classify whatever gets thrown
+         */
+        public SharedGrizzlyConnectTask(SharedTcpTransport transport, InetSocketAddress address, boolean typed, AllocationMeter allocations, Meter attempts, Meter bindFailures, Meter connectionsRefused) {
+            this.transport = transport;
+            this.address = address;
+            this.typed = typed;
+            this.allocations = allocations;
+            this.attempts = attempts;
+            this.bindFailures = bindFailures;
+            this.connectionsRefused = connectionsRefused;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            SharedTcpTransport.ConnectAttempt attempt = new SharedTcpTransport.ConnectAttempt();
+            while (!die) {
+                ConnectOutcome outcome;
+                Connection connection = null;
+                Throwable failure = null;
+                if (typed) {
+                    outcome = transport.connect(address, null, attempt);
+                    connection = attempt.getConnection();
+                    failure = attempt.getFailure();
+                } else {
+                    try {
+                        connection = transport.connect(address);
+                        outcome = ConnectOutcome.OK;
+                    } catch (Throwable t) {
+                        failure = t;
+                        outcome = ConnectOutcome.classify(t);
+                    }
+                }
+                attempts.mark();
+                switch (outcome) {
+                    case OK:
+                        connection.close();
+                        break;
+                    case BIND_FAILED:
+                        bindFailures.mark(); //ephemeral port exhaustion.
+                        break;
+                    case REFUSED:
+                        connectionsRefused.mark(); //expected output
+                        break;
+                    default:
+                        causeOfDeath = failure != null ? failure : new IllegalStateException("connect " + outcome); //cancelled
+                        die = true;
+                }
+            }
+            return null;
+        }
+    }
 }
@@ -0,0 +1,267 @@
+package net.radai;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.PrintStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * keeps tabs on a sample of the transports, rpc clients and socket channels the tests open, so that when counters
+ * start drifting there is something to look at: what was opened, when, and from where (a stack trace captured at
+ * open time). tracked resources are either closed - and forgotten - or still open, or were garbage collected without
+ * ever being closed (noticed by way of phantom references).
+ * <br>
+ * a started grizzly transport (and so an {@link org.dcache.xdr.OncRpcClient}, which owns one) is reachable from its
+ * own selector threads until it is shut down, so it is never collected: for those - the usual leak - being open
+ * longer than a threshold in {@link #report(long)} is the only signal. collection only catches resources that hold
+ * no threads, like a socket channel or a transport that was never started.
+ * <br>
+ * a fraction sampleRate of the resources opened is tracked. at 0, which is the default for {@link #GLOBAL}, track()
+ * and closed() return right away, so the calls can be left in load loops for good and switched on with
+ * -Dtracker.sampleRate=... for a soak run. tracked resources are held weakly, tracking never keeps anything alive.
+ * @author Radai Rosenblatt
+ */
+public class ConnectionTracker {
+    private static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(b.ageMillis, a.ageMillis);
+        }
+    };
+    public static final ConnectionTracker GLOBAL = new ConnectionTracker(Double.parseDouble(System.getProperty("tracker.sampleRate", "0")), 1000);
+
+    private final double sampleRate;
+    private final int maxCollected;
+    private final ConcurrentMap<IdentityKey, Handle> open = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Object> collectedQueue = new ReferenceQueue<>();
+    private final Queue<Entry> collected = new ConcurrentLinkedQueue<>();
+    private final AtomicLong collectedCount = new AtomicLong(0);
+
+    /**
+     * @param sampleRate fraction of resources to track, 0 (nothing) to 1 (everything)
+     * @param maxCollected how many resources collected without being closed to keep details of. all are counted
+     */
+    public ConnectionTracker(double sampleRate, int maxCollected) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate " + sampleRate + " not in [0, 1]");
+        }
+        this.sampleRate = sampleRate;
+        this.maxCollected = maxCollected;
+    }
+
+    public boolean isEnabled() {
+        return sampleRate > 0;
+    }
+
+    /**
+     * registers tracker.open and tracker.collectedUnclosed gauges
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        metrics.register("tracker.open", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getOpen();
+            }
+        });
+        metrics.register("tracker.collectedUnclosed", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getCollectedUnclosed();
+            }
+        });
+    }
+
+    /**
+     * call right after opening (or creating) a resource
+     * @param description anything that helps tell it apart - usually the remote address
+     */
+    public void track(Object resource, Object description) {
+        if (sampleRate == 0 || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return;
+        }
+        drainCollected();
+        IdentityKey key = new IdentityKey(resource);
+        Handle handle = new Handle(resource, collectedQueue, key, resource.getClass().getSimpleName(), String.valueOf(description));
+        open.put(key, handle);
+    }
+
+    /**
+     * call once a resource has been closed. resources that were not tracked are ignored
+     */
+    public void closed(Object resource) {
+        if (sampleRate == 0 || resource == null) {
+            return;
+        }
+        Handle handle = open.remove(new IdentityKey(resource));
+        if (handle != null) {
+            handle.clear(); //no longer of interest once closed
+        }
+    }
+
+    public int getOpen() {
+        drainCollected();
+        return open.size();
+    }
+
+    public long getCollectedUnclosed() {
+        drainCollected();
+        return collectedCount.get();
+    }
+
+    /**
+     * @return resources open for longer than openLongerThanMillis, oldest first, followed by (up to maxCollected)
+     *         resources that were garbage collected without being closed
+     */
+    public List<Entry> report(long openLongerThanMillis) {
+        drainCollected();
+        long now = System.nanoTime();
+        long threshold = TimeUnit.MILLISECONDS.toNanos(openLongerThanMillis);
+        List<Entry> entries = new ArrayList<>();
+        for (Handle handle : open.values()) {
+            if (now - handle.openedNanos > threshold) {
+                entries.add(handle.toEntry(now, false));
+            }
+        }
+        Collections.sort(entries, OLDEST_FIRST);
+        entries.addAll(collected);
+        return entries;
+    }
+
+    /**
+     * prints a report (see {@link #report(long)}), with the stack trace each resource was opened at
+     */
+    public void printReport(PrintStream out, long openLongerThanMillis) {
+        List<Entry> entries = report(openLongerThanMillis);
+        out.println(String.format("tracker: %d open, %d open longer than %d ms, %d collected without being closed (sample rate %s)",
+                getOpen(), entries.size() - collected.size(), openLongerThanMillis, getCollectedUnclosed(), sampleRate));
+        for (Entry entry : entries) {
+            out.println(entry);
+            entry.openedAt.printStackTrace(out);
+        }
+    }
+
+    private void drainCollected() {
+        Reference<?> reference;
+        while ((reference = collectedQueue.poll()) != null) {
+            Handle handle = (Handle) reference;
+            if (open.remove(handle.key) == null) {
+                continue; //closed concurrently
+            }
+            collectedCount.incrementAndGet();
+            if (collected.size() < maxCollected) {
+                collected.add(handle.toEntry(System.nanoTime(), true));
+            }
+        }
+    }
+
+    public static class Entry {
+        private final String kind;
+        private final String description;
+        private final long ageMillis;
+        private final boolean collected;
+        private final Throwable openedAt;
+
+        private Entry(String kind, String description, long ageMillis, boolean collected, Throwable openedAt) {
+            this.kind = kind;
+            this.description = description;
+            this.ageMillis = ageMillis;
+            this.collected = collected;
+            this.openedAt = openedAt;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return how long it was open for - until now, or until it was found collected
+         */
+        public long getAgeMillis() {
+            return ageMillis;
+        }
+
+        /**
+         * @return true if it was garbage collected without being closed, false if it is still open
+         */
+        public boolean isCollected() {
+            return collected;
+        }
+
+        public Throwable getOpenedAt() {
+            return openedAt;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " to " + description + (collected ? " collected without being closed after " : " open for ") + ageMillis + " ms";
+        }
+    }
+
+    private static class Handle extends PhantomReference<Object> {
+        private final IdentityKey key;
+        private final String kind;
+        private final String description;
+        private final long openedNanos = System.nanoTime();
+        private final Throwable openedAt = new Throwable("opened here"); //the expensive part, only ever paid when sampled
+
+        private Handle(Object resource, ReferenceQueue<Object> queue, IdentityKey key, String kind, String description) {
+            super(resource, queue);
+            this.key = key;
+            this.kind = kind;
+            this.description = description;
+        }
+
+        private Entry toEntry(long nowNanos, boolean collected) {
+            return new Entry(kind, description, TimeUnit.NANOSECONDS.toMillis(nowNanos - openedNanos), collected, openedAt);
+        }
+    }
+
+    /**
+     * identity (not equals()) of a resource, held weakly. a phantom reference cannot be asked for its referent,
+     * so this is what closed() finds a resource's handle by
+     */
+    private static class IdentityKey extends WeakReference<Object> {
+        private final int hash;
+
+        private IdentityKey(Object resource) {
+            super(resource);
+            this.hash = System.identityHashCode(resource);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof IdentityKey)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((IdentityKey) obj).get();
+        }
+    }
+}
@@ -4,33 +4,51 @@ import com.codahale.metrics.ConsoleReporter;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
 import org.dcache.utils.net.InetSocketAddresses;
 import org.dcache.xdr.IpProtocolType;
 import org.dcache.xdr.OncRpcClient;
 import org.dcache.xdr.XdrTransport;
 import org.dcache.xdr.portmap.GenericPortmapClient;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.IOStrategy;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
 import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.net.BindException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * @author Radai Rosenblatt
@@ -39,10 +57,16 @@ import java.util.concurrent.TimeUnit;
  */
 public class DisconnectLeakTest {
     public static final int N_THREADS = 10;
+    private static final long SOAK_MILLIS = Long.getLong("soak.millis", TimeUnit.MINUTES.toMillis(1));
+    private static final long BENCHMARK_MILLIS = Long.getLong("benchmark.millis", TimeUnit.SECONDS.toMillis(10));
+    private static final long TRACKER_OPEN_MILLIS = Long.getLong("tracker.openMillis", TimeUnit.SECONDS.toMillis(10));
+    private static final int REAPER_BACKLOG = 32; //transports waiting to be closed each still hold selector threads and an epoll fd
     private static volatile boolean die = false;
     private static volatile Throwable causeOfDeath = null;
 
     private InetAddress localhostAddress;
+    private EmbeddedRpcbind rpcbind;
+    private InetSocketAddress rpcbindAddress;
     private MetricRegistry metrics = new MetricRegistry();
     private Meter requests = metrics.meter("requests");
     private Meter bindFailures = metrics.meter("bindFailures");
@@ -54,23 +78,36 @@ public class DisconnectLeakTest {
 
     @Before
     public void setup() throws Throwable {
+        die = false;
+        causeOfDeath = null;
         localhostAddress = InetAddress.getByName("127.0.0.1");
-        try (OncRpcClient rpcClient = new OncRpcClient(localhostAddress, IpProtocolType.TCP, 111)) {
-            XdrTransport transport = rpcClient.connect();
-            GenericPortmapClient portmapClient = new GenericPortmapClient(transport);
-            String uaddr = InetSocketAddresses.uaddrOf("127.0.0.1", 666);
-            portmapClient.setPort(666, 666, "tcp", uaddr, "bob"); //register a bogus "bob" application on port 666
-        } catch (Throwable t) {
-            Throwable cause = Util.getRootCause(t);
-            if (cause instanceof ConnectException) {
-                Assume.assumeNoException("rpcbind should be running", cause);
-            }
-            throw t;
+        if (Boolean.getBoolean("rpcbind.system")) {
+            //test against the host's rpcbind
+            rpcbindAddress = new InetSocketAddress(localhostAddress, 111);
+            try (OncRpcClient rpcClient = new OncRpcClient(localhostAddress, IpProtocolType.TCP, 111)) {
+                XdrTransport transport = rpcClient.connect();
+                GenericPortmapClient portmapClient = new GenericPortmapClient(transport);
+                String uaddr = InetSocketAddresses.uaddrOf("127.0.0.1", 666);
+                portmapClient.setPort(666, 666, "tcp", uaddr, "bob"); //register a bogus "bob" application on port 666
+            } catch (Throwable t) {
+                Throwable cause = Util.getRootCause(t);
+                if (cause instanceof ConnectException) {
+                    Assume.assumeNoException("rpcbind should be running", cause);
+                }
+                throw t;
+            }
+        } else {
+            rpcbind = new EmbeddedRpcbind(); //comes with "bob" already registered
+            rpcbindAddress = rpcbind.getTcpAddress();
         }
+        new ProcessResourceGauges(metrics, rpcbindAddress.getPort()); //fds, epoll instances, threads and sockets to rpcbind
         reporter = ConsoleReporter.forRegistry(metrics)
                 .convertRatesTo(TimeUnit.SECONDS)
                 .convertDurationsTo(TimeUnit.MILLISECONDS)
                 .build();
+        if (ConnectionTracker.GLOBAL.isEnabled()) {
+            ConnectionTracker.GLOBAL.registerMetrics(metrics); //-Dtracker.sampleRate=...
+        }
         reporter.start(10, TimeUnit.SECONDS);
     }
 
@@ -79,6 +116,12 @@ public class DisconnectLeakTest {
         if (reporter != null) {
             reporter.stop();
         }
+        if (ConnectionTracker.GLOBAL.isEnabled()) {
+            ConnectionTracker.GLOBAL.printReport(System.err, TRACKER_OPEN_MILLIS);
+        }
+        if (rpcbind != null) {
+            rpcbind.close();
+        }
     }
 
 //    @Test
@@ -86,7 +129,7 @@ public class DisconnectLeakTest {
         ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
         Set<Future<Void>> futures = new HashSet<>();
         for (int i = 0; i < N_THREADS; i++) {
-            Future<Void> future = executor.submit(new PortmapQueryTask(localhostAddress, requests, bindFailures));
+            Future<Void> future = executor.submit(new PortmapQueryTask(rpcbindAddress, requests, bindFailures));
             futures.add(future);
         }
         for (Future<Void> future : futures) {
@@ -95,11 +138,302 @@ public class DisconnectLeakTest {
         throw causeOfDeath;
     }
 
+    /**
+     * same workload as testLeakWithPortmapClient, but with connections coming out of a pool.
+     * run with -Dsoak.millis=... to soak for longer than the default minute
+     */
+    @Test
+    public void testNoLeakWithPooledPortmapClient() throws Throwable {
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        Set<Future<Void>> futures = new HashSet<>();
+        try (OncRpcClientPool pool = new OncRpcClientPool(N_THREADS, N_THREADS, TimeUnit.MINUTES.toMillis(1), metrics)) {
+            for (int i = 0; i < N_THREADS; i++) {
+                Future<Void> future = executor.submit(new PooledPortmapQueryTask(rpcbindAddress, pool, requests, bindFailures));
+                futures.add(future);
+            }
+            long deadline = System.currentTimeMillis() + SOAK_MILLIS;
+            while (!die && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            die = true;
+            for (Future<Void> future : futures) {
+                future.get(); //block
+            }
+        }
+        executor.shutdown();
+        reporter.report();
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+        Assert.assertEquals("bind failures", 0, bindFailures.getCount());
+    }
+
+    /**
+     * connect/close churn and portmap queries, with every connection bound to an explicit local address spread over
+     * -Dlocal.addresses loopback source addresses (127.0.0.1 ... 127.0.0.N) and a port range wider than the kernel's
+     * default ephemeral one. ports are held back for as long as TIME_WAIT lasts, so connects should wait for a port
+     * instead of failing to bind. run with -Dsoak.millis=... to soak for longer than the default minute
+     */
+    @Test
+    public void testNoBindFailuresWithLocalAddressAllocator() throws Throwable {
+        LocalAddressAllocator localAddresses = new LocalAddressAllocator(LocalAddressAllocator.loopbackAddresses(Integer.getInteger("local.addresses", 16)),
+                10000, 59999, TimeUnit.SECONDS.toMillis(61), metrics); //minus the kernel's ephemeral range
+        String strategyName = System.getProperty("io.strategy", "same");
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        Set<Future<Void>> futures = new HashSet<>();
+        try (SharedTcpTransport sharedTransport = new SharedTcpTransport(SharedTcpTransport.ioStrategyFor(strategyName));
+             SharedRpcClientFactory clientFactory = new SharedRpcClientFactory(SharedTcpTransport.ioStrategyFor(strategyName))) {
+            for (int i = 0; i < N_THREADS; i++) {
+                Callable<Void> task;
+                if (i % 2 == 0) {
+                    task = new SharedGrizzlyConnectTask(sharedTransport, rpcbindAddress, localAddresses, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses);
+                } else {
+                    task = new SharedPortmapQueryTask(clientFactory, rpcbindAddress, localAddresses, requests, bindFailures);
+                }
+                futures.add(executor.submit(task));
+            }
+            long deadline = System.currentTimeMillis() + SOAK_MILLIS;
+            while (!die && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            die = true;
+            for (Future<Void> future : futures) {
+                future.get(); //block
+            }
+        }
+        executor.shutdown();
+        reporter.report();
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+        Assert.assertEquals("bind failures", 0, bindFailures.getCount());
+    }
+
+    /**
+     * a connection returned to the pool and never borrowed again is closed by the background sweep once idle for too long
+     */
+    @Test
+    public void testPoolEvictsIdleConnections() throws Throwable {
+        try (OncRpcClientPool pool = new OncRpcClientPool(N_THREADS, N_THREADS, 200, metrics)) {
+            try (OncRpcClientPool.Lease lease = pool.borrow(rpcbindAddress.getAddress(), IpProtocolType.TCP, rpcbindAddress.getPort())) {
+                Assert.assertNotNull(new GenericPortmapClient(lease.getTransport()).getPort(666, 666, "tcp"));
+            }
+            Assert.assertEquals(1, pool.getIdleCount());
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (pool.getIdleCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(0, pool.getIdleCount());
+            Assert.assertEquals(1, metrics.counter("pool.destroyed").getCount());
+            Assert.assertEquals(1, metrics.meter("pool.evicted").getCount());
+        }
+    }
+
+    @Test
+    public void testCachedPortmapLookups() throws Throwable {
+        try (OncRpcClientPool pool = new OncRpcClientPool(N_THREADS, N_THREADS, TimeUnit.MINUTES.toMillis(1), metrics)) {
+            final CachingPortmapResolver resolver = new CachingPortmapResolver(pool, localhostAddress, IpProtocolType.TCP, rpcbindAddress.getPort(),
+                    TimeUnit.MINUTES.toMillis(1), TimeUnit.SECONDS.toMillis(10), 1000, metrics);
+            Assert.assertTrue("dump should at least list rpcbind itself", resolver.warmUp() > 0);
+            Assert.assertNotNull(resolver.getPort(666, 666, "tcp"));
+            Assert.assertNull(resolver.getPort(667, 667, "tcp")); //nobody registered "bob's brother"
+            Assert.assertNull(resolver.getPort(667, 667, "tcp"));
+            Assert.assertEquals(1, metrics.meter("portmapCache.negativeHits").getCount());
+
+            //a thundering herd of misses on the same key should turn into a single rpc
+            resolver.invalidate(666, 666, "tcp");
+            long missesBefore = metrics.meter("portmapCache.misses").getCount();
+            ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+            final CountDownLatch gate = new CountDownLatch(1);
+            Set<Future<String>> futures = new HashSet<>();
+            for (int i = 0; i < N_THREADS; i++) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        gate.await();
+                        return resolver.getPort(666, 666, "tcp");
+                    }
+                }));
+            }
+            gate.countDown();
+            Set<String> answers = new HashSet<>();
+            for (Future<String> future : futures) {
+                answers.add(future.get());
+            }
+            executor.shutdown();
+            reporter.report();
+            Assert.assertEquals(1, answers.size());
+            Assert.assertEquals("herd should produce exactly one rpc", 1, metrics.meter("portmapCache.misses").getCount() - missesBefore);
+        }
+    }
+
+    /**
+     * getPort and dump fanned out to a couple of embedded rpcbinds on each of several loopback addresses
+     * (-Ddiscovery.hosts=...), plus one endpoint that refuses connections and one that accepts them but never answers.
+     * at most one query per host is allowed in flight, so the two rpcbinds on each host take turns
+     */
+    @Test
+    public void testPortmapDiscoveryFanOut() throws Throwable {
+        int hosts = Integer.getInteger("discovery.hosts", 8);
+        final int rpcbindsPerHost = 2;
+        final int maxInFlight = 4;
+        final long timeoutMillis = TimeUnit.SECONDS.toMillis(1);
+        List<EmbeddedRpcbind> rpcbinds = new ArrayList<>();
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try (ServerSocket silent = new ServerSocket(0, 50, localhostAddress); //the kernel accepts, nobody ever reads
+             SharedRpcClientFactory clientFactory = new SharedRpcClientFactory(SharedTcpTransport.ioStrategyFor(System.getProperty("io.strategy", "same")))) {
+            List<InetSocketAddress> alive = new ArrayList<>();
+            for (int i = 0; i < hosts; i++) {
+                for (int j = 0; j < rpcbindsPerHost; j++) {
+                    EmbeddedRpcbind hostRpcbind = new EmbeddedRpcbind("127.0.0." + (i + 2), 1, 1);
+                    rpcbinds.add(hostRpcbind);
+                    alive.add(hostRpcbind.getTcpAddress());
+                }
+            }
+            InetSocketAddress refusing;
+            try (ServerSocket closed = new ServerSocket(0, 50, localhostAddress)) {
+                refusing = new InetSocketAddress(localhostAddress, closed.getLocalPort()); //nothing listens there once closed
+            }
+            InetSocketAddress silentAddress = new InetSocketAddress(localhostAddress, silent.getLocalPort());
+            //the silent endpoint goes (nearly) first, so its query is in flight while everything behind it is heard
+            //about. refusing goes before it - it is on the same host, and would otherwise wait out the timeout
+            List<InetSocketAddress> endpoints = new ArrayList<>();
+            endpoints.add(refusing);
+            endpoints.add(silentAddress);
+            endpoints.addAll(alive);
+
+            PortmapDiscovery discovery = new PortmapDiscovery(clientFactory, maxInFlight, 1, timeoutMillis, timer);
+            final ConcurrentMap<InetSocketAddress, Object> answers = new ConcurrentHashMap<>();
+            final ConcurrentMap<InetSocketAddress, Long> heardAt = new ConcurrentHashMap<>();
+            long start = System.nanoTime();
+            discovery.getPort(endpoints, EmbeddedRpcbind.BOB_PROGRAM, EmbeddedRpcbind.BOB_VERSION, PortmapProtocol.IPPROTO_TCP, new PortmapDiscovery.Listener<Integer>() {
+                @Override
+                public void onResult(InetSocketAddress rpcbind, Integer port) {
+                    answers.put(rpcbind, port);
+                    heardAt.put(rpcbind, System.nanoTime());
+                }
+
+                @Override
+                public void onFailure(InetSocketAddress rpcbind, Throwable cause) {
+                    answers.put(rpcbind, ConnectOutcome.classify(cause));
+                    heardAt.put(rpcbind, System.nanoTime());
+                }
+            }).get(timeoutMillis * endpoints.size(), TimeUnit.MILLISECONDS);
+            System.err.println("getPort from " + endpoints.size() + " endpoints took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            Assert.assertEquals(endpoints.size(), answers.size());
+            for (InetSocketAddress rpcbind : alive) {
+                Assert.assertEquals("answer from " + rpcbind, 666, answers.get(rpcbind));
+            }
+            Assert.assertEquals(ConnectOutcome.REFUSED, answers.get(refusing));
+            Assert.assertEquals(ConnectOutcome.TIMEOUT, answers.get(silentAddress));
+            //streamed as they came, not held back for the slowest endpoint: everybody else was heard about before the
+            //silent endpoint's query (started after start) could have timed out
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (InetSocketAddress endpoint : endpoints) {
+                long afterStartMillis = TimeUnit.NANOSECONDS.toMillis(heardAt.get(endpoint) - start);
+                if (endpoint.equals(silentAddress)) {
+                    Assert.assertTrue("silent endpoint heard about after " + afterStartMillis + " ms", heardAt.get(endpoint) - start >= timeoutNanos);
+                } else {
+                    Assert.assertTrue(endpoint + " heard about after " + afterStartMillis + " ms", heardAt.get(endpoint) - start < timeoutNanos);
+                }
+            }
+            Assert.assertEquals(1, discovery.getPeakInFlightPerHost());
+            Assert.assertTrue("peak in flight " + discovery.getPeakInFlight(), discovery.getPeakInFlight() <= maxInFlight);
+            Assert.assertEquals(0, discovery.getInFlight());
+
+            final ConcurrentMap<InetSocketAddress, List<PortmapProtocol.Mapping>> dumps = new ConcurrentHashMap<>();
+            discovery.dump(alive, new PortmapDiscovery.Listener<List<PortmapProtocol.Mapping>>() {
+                @Override
+                public void onResult(InetSocketAddress rpcbind, List<PortmapProtocol.Mapping> mappings) {
+                    dumps.put(rpcbind, mappings);
+                }
+
+                @Override
+                public void onFailure(InetSocketAddress rpcbind, Throwable cause) {
+                    System.err.println("dump from " + rpcbind + " failed");
+                    cause.printStackTrace();
+                }
+            }).get(timeoutMillis * alive.size(), TimeUnit.MILLISECONDS);
+            Assert.assertEquals(alive.size(), dumps.size());
+            for (List<PortmapProtocol.Mapping> mappings : dumps.values()) {
+                boolean bobListed = false;
+                for (PortmapProtocol.Mapping mapping : mappings) {
+                    bobListed |= mapping.getProg() == EmbeddedRpcbind.BOB_PROGRAM && mapping.getPort() == 666;
+                }
+                Assert.assertTrue("bob missing from " + mappings.size() + " mappings", bobListed);
+            }
+            Assert.assertEquals(1, discovery.getPeakInFlightPerHost());
+        } finally {
+            timer.shutdownNow();
+            for (EmbeddedRpcbind hostRpcbind : rpcbinds) {
+                hostRpcbind.close();
+            }
+        }
+    }
+
+    /**
+     * a started transport that is dropped without being shut down - the leak the load loops make - stays reachable
+     * from its own selector threads, so it is never collected: it shows up as open for too long, with where it was
+     * opened. only a transport that was never started gets collected, and shows up as collected without being closed
+     */
+    @Test
+    public void testConnectionTrackerReportsLeaks() throws Throwable {
+        ConnectionTracker tracker = new ConnectionTracker(1.0, 10);
+        TCPNIOTransport transport = TCPNIOTransportBuilder.newInstance().setIOStrategy(SameThreadIOStrategy.getInstance()).build();
+        transport.start();
+        tracker.track(transport, rpcbindAddress);
+        transport.connect(rpcbindAddress).get(); //block
+        WeakReference<TCPNIOTransport> leaked = new WeakReference<>(transport); //only to clean up after ourselves
+        transport = null; //dropped without a shutdown
+        try {
+            for (int i = 0; i < 5; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            Assert.assertNotNull("a started transport is kept alive by its own threads", leaked.get());
+            Assert.assertEquals(0, tracker.getCollectedUnclosed());
+            List<ConnectionTracker.Entry> entries = tracker.report(10);
+            Assert.assertEquals(1, entries.size());
+            Assert.assertFalse(entries.get(0).isCollected());
+            boolean openedHere = false;
+            for (StackTraceElement frame : entries.get(0).getOpenedAt().getStackTrace()) {
+                openedHere |= "testConnectionTrackerReportsLeaks".equals(frame.getMethodName());
+            }
+            Assert.assertTrue("stack trace should point here", openedHere);
+            Assert.assertTrue(tracker.report(TimeUnit.MINUTES.toMillis(1)).isEmpty()); //not open for that long
+        } finally {
+            TCPNIOTransport stillThere = leaked.get();
+            if (stillThere != null) {
+                stillThere.shutdown().get(); //block
+                tracker.closed(stillThere);
+            }
+        }
+        Assert.assertEquals(0, tracker.getOpen());
+        Assert.assertTrue(tracker.report(0).isEmpty());
+
+        tracker.track(TCPNIOTransportBuilder.newInstance().build(), "nowhere"); //never started, so nothing else holds on to it
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (tracker.getCollectedUnclosed() == 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, tracker.getCollectedUnclosed());
+        List<ConnectionTracker.Entry> entries = tracker.report(0);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertTrue(entries.get(0).isCollected());
+        Assert.assertEquals("nowhere", entries.get(0).getDescription());
+        tracker.printReport(System.err, 0);
+
+        ConnectionTracker off = new ConnectionTracker(0, 10);
+        off.track(new Object(), rpcbindAddress);
+        Assert.assertEquals(0, off.getOpen());
+    }
+
     @Test
     public void testLeakWithGrizzly() throws Throwable {
         ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
         Set<Future<Void>> futures = new HashSet<>();
-        InetSocketAddress inetSocketAddress = new InetSocketAddress(localhostAddress, 111);
+        InetSocketAddress inetSocketAddress = rpcbindAddress;
         for (int i = 0; i < N_THREADS; i++) {
             Future<Void> future = executor.submit(new GrizzlyConnectTask(inetSocketAddress, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses, 0));
             futures.add(future);
@@ -112,11 +446,393 @@ public class DisconnectLeakTest {
         throw causeOfDeath;
     }
 
+    /**
+     * same workload as testLeakWithGrizzly, but for a fixed -Dsoak.millis, failing if resources grow with the number
+     * of connect/close cycles. the time series is written to target/ (see soakWithLeakGate)
+     */
+    @Test
+    public void testLeakSlopeWithGrizzly() throws Throwable {
+        final InetSocketAddress inetSocketAddress = rpcbindAddress;
+        soakWithLeakGate("grizzly", new TaskFactory() {
+            @Override
+            public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                return new GrizzlyConnectTask(inetSocketAddress, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses, 0);
+            }
+        });
+    }
+
+    /**
+     * same workload as testLeakWithPortmapClient, gated like testLeakSlopeWithGrizzly
+     */
+    @Test
+    public void testLeakSlopeWithPortmapClient() throws Throwable {
+        final InetSocketAddress inetSocketAddress = rpcbindAddress;
+        soakWithLeakGate("portmap", new TaskFactory() {
+            @Override
+            public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                return new PortmapQueryTask(inetSocketAddress, requests, bindFailures);
+            }
+        });
+    }
+
+    /**
+     * transport per connect, with the transports shut down by a close reaper instead of by the connecting threads.
+     * every transport must still be accounted for as closed, successfully, once the reaper is done
+     */
+    @Test
+    public void testNoLeakWithCloseReaper() throws Throwable {
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        Set<Future<Void>> futures = new HashSet<>();
+        try (CloseReaper reaper = new CloseReaper(REAPER_BACKLOG, REAPER_BACKLOG, 2, metrics)) {
+            for (int i = 0; i < N_THREADS; i++) {
+                futures.add(executor.submit(new GrizzlyConnectTask(rpcbindAddress, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses, 0, reaper)));
+            }
+            long deadline = System.currentTimeMillis() + SOAK_MILLIS;
+            while (!die && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            die = true;
+            for (Future<Void> future : futures) {
+                future.get(); //block
+            }
+        } //drains the backlog
+        executor.shutdown();
+        reporter.report();
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+        Assert.assertEquals("attempts vs. closes", successfulOpens.getCount() + failedOpens.getCount(), successfulCloses.getCount() + failedCloses.getCount());
+        Assert.assertEquals("failed closes", 0, failedCloses.getCount());
+    }
+
+    /**
+     * transport per connect, shut down in-line vs. by a close reaper
+     */
+    @Test
+    public void benchmarkCloseReaperVersusBlockingClose() throws Throwable {
+        final InetSocketAddress inetSocketAddress = rpcbindAddress;
+        BenchmarkRun blocking = runBenchmark(new TaskFactory() {
+            @Override
+            public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                return new GrizzlyConnectTask(inetSocketAddress, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses, 0);
+            }
+        });
+        BenchmarkRun reaped;
+        try (final CloseReaper reaper = new CloseReaper(REAPER_BACKLOG, REAPER_BACKLOG, 2, metrics)) {
+            reaped = runBenchmark(new TaskFactory() {
+                @Override
+                public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                    return new GrizzlyConnectTask(inetSocketAddress, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses, 0, reaper);
+                }
+            });
+        }
+        reporter.report();
+        System.err.println(String.format("%-30s %12s %12s %12s %12s", "mode", "connects/sec", "bindFailures", "peakThreads", "peakFds"));
+        System.err.println(blocking.toRow("blocking shutdown"));
+        System.err.println(reaped.toRow("close reaper"));
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+    }
+
+    /**
+     * connect/close churn with a transport per connect vs. many connections on one shared transport.
+     * run with -Dio.strategy=same|worker|leader|dynamic to pick the io strategy of the shared transport
+     */
+    @Test
+    public void benchmarkSharedTransportVersusTransportPerConnect() throws Throwable {
+        final InetSocketAddress inetSocketAddress = rpcbindAddress;
+        String strategyName = System.getProperty("io.strategy", "same");
+        BenchmarkRun perConnect = runBenchmark(new TaskFactory() {
+            @Override
+            public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                return new GrizzlyConnectTask(inetSocketAddress, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses, 0);
+            }
+        });
+        BenchmarkRun shared;
+        try (final SharedTcpTransport sharedTransport = new SharedTcpTransport(SharedTcpTransport.ioStrategyFor(strategyName))) {
+            shared = runBenchmark(new TaskFactory() {
+                @Override
+                public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                    return new SharedGrizzlyConnectTask(sharedTransport, inetSocketAddress, null, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses);
+                }
+            });
+        }
+        System.err.println(String.format("%-30s %12s %12s %12s %12s", "mode", "connects/sec", "bindFailures", "peakThreads", "peakFds"));
+        System.err.println(perConnect.toRow("transport per connect"));
+        System.err.println(shared.toRow("shared transport (" + strategyName + ")"));
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+    }
+
+    /**
+     * connect/close churn on a shared transport from a fixed pool of N_THREADS threads retrying bind failures right
+     * away, vs. -Dlimiter.threads threads (64 by default) whose connects go through an adaptive concurrency limiter
+     */
+    @Test
+    public void benchmarkAdaptiveLimiterVersusFixedThreads() throws Throwable {
+        final InetSocketAddress inetSocketAddress = rpcbindAddress;
+        int limiterThreads = Integer.getInteger("limiter.threads", 64);
+        BenchmarkRun fixed;
+        BenchmarkRun limited;
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(N_THREADS, 1, limiterThreads, metrics);
+        try (final SharedTcpTransport sharedTransport = new SharedTcpTransport(SharedTcpTransport.ioStrategyFor(System.getProperty("io.strategy", "same")))) {
+            fixed = runBenchmark(new TaskFactory() {
+                @Override
+                public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                    return new SharedGrizzlyConnectTask(sharedTransport, inetSocketAddress, null, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses);
+                }
+            });
+            limited = runBenchmark(limiterThreads, new TaskFactory() {
+                @Override
+                public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                    return new SharedGrizzlyConnectTask(sharedTransport, inetSocketAddress, null, limiter, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses);
+                }
+            });
+        }
+        reporter.report();
+        System.err.println(String.format("%-30s %12s %12s %12s %12s", "mode", "connects/sec", "bindFailures", "peakThreads", "peakFds"));
+        System.err.println(fixed.toRow(N_THREADS + " spinning threads"));
+        System.err.println(limited.toRow("adaptive limit (ended at " + limiter.getLimit() + ")"));
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+    }
+
+    /**
+     * connect + close and connect + getPort + close over a matrix of io strategies (-Dmatrix.strategies=same,worker,leader),
+     * selector runner counts (-Dmatrix.selectorRunners=1,2,4), worker pool sizes (-Dmatrix.workerThreads=4,16) and
+     * client thread counts (-Dmatrix.threads=1,4,16), -Dmatrix.cellMillis (2 seconds by default) per cell.
+     * cpu columns are process-wide: without -Drpcbind.system they include the embedded rpcbind's work
+     */
+    @Test
+    public void benchmarkTransportMatrix() throws Throwable {
+        final InetSocketAddress inetSocketAddress = rpcbindAddress;
+        if (rpcbind != null) {
+            System.err.println("cpu columns include the in-process rpcbind, run with -Drpcbind.system for client cpu alone");
+        }
+        String[] strategies = System.getProperty("matrix.strategies", "same,worker,leader").split(",");
+        int[] selectorRunners = intList(System.getProperty("matrix.selectorRunners", "1,2,4"));
+        int[] workerThreads = intList(System.getProperty("matrix.workerThreads", "4,16"));
+        int[] threads = intList(System.getProperty("matrix.threads", "1,4,16"));
+        long cellMillis = Long.getLong("matrix.cellMillis", TimeUnit.SECONDS.toMillis(2));
+        TransportMatrixRunner runner = new TransportMatrixRunner(cellMillis, cellMillis / 4);
+        System.err.println(TransportMatrixRunner.header());
+        List<TransportMatrixRunner.Cell> cells = new ArrayList<>();
+        cells.addAll(runner.run("connect", new TransportMatrixRunner.Workload() {
+            @Override
+            public TransportMatrixRunner.Operation prepare(IOStrategy ioStrategy, int selectorRunners, int workerThreads) throws Exception {
+                final SharedTcpTransport transport = new SharedTcpTransport(ioStrategy, selectorRunners, workerThreads, null);
+                return new TransportMatrixRunner.Operation() {
+                    @Override
+                    public void execute() throws Exception {
+                        transport.connect(inetSocketAddress).close().get(); //block
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        transport.close();
+                    }
+                };
+            }
+        }, strategies, selectorRunners, workerThreads, threads));
+        cells.addAll(runner.run("portmap", new TransportMatrixRunner.Workload() {
+            @Override
+            public TransportMatrixRunner.Operation prepare(IOStrategy ioStrategy, int selectorRunners, int workerThreads) throws Exception {
+                final SharedRpcClientFactory clientFactory = new SharedRpcClientFactory(ioStrategy, selectorRunners, workerThreads);
+                return new TransportMatrixRunner.Operation() {
+                    @Override
+                    public void execute() throws Exception {
+                        try (SharedRpcClientFactory.Client rpcClient = clientFactory.newClient(inetSocketAddress)) {
+                            new GenericPortmapClient(rpcClient.connect()).getPort(666, 666, "tcp");
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        clientFactory.close();
+                    }
+                };
+            }
+        }, strategies, selectorRunners, workerThreads, threads));
+
+        System.err.println();
+        System.err.println(TransportMatrixRunner.header());
+        for (TransportMatrixRunner.Cell cell : cells) {
+            System.err.println(cell.toRow());
+            if (cell.getLastError() != null && !(Util.getRootCause(cell.getLastError()) instanceof BindException)) {
+                throw cell.getLastError();
+            }
+        }
+    }
+
+    /**
+     * portmap queries with a private OncRpcClient (and transport) per query vs. clients sharing one transport
+     */
+    @Test
+    public void benchmarkSharedRpcClientsVersusPrivateTransports() throws Throwable {
+        final InetSocketAddress inetSocketAddress = rpcbindAddress;
+        String strategyName = System.getProperty("io.strategy", "same");
+        BenchmarkRun privateTransports = runBenchmark(new TaskFactory() {
+            @Override
+            public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                return new PortmapQueryTask(rpcbindAddress, requests, bindFailures);
+            }
+        });
+        BenchmarkRun shared;
+        try (final SharedRpcClientFactory clientFactory = new SharedRpcClientFactory(SharedTcpTransport.ioStrategyFor(strategyName))) {
+            shared = runBenchmark(new TaskFactory() {
+                @Override
+                public Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                    return new SharedPortmapQueryTask(clientFactory, inetSocketAddress, null, requests, bindFailures);
+                }
+            });
+        }
+        System.err.println(String.format("%-30s %12s %12s %12s %12s", "mode", "queries/sec", "bindFailures", "peakThreads", "peakFds"));
+        System.err.println(privateTransports.toRow("private OncRpcClient"));
+        System.err.println(shared.toRow("shared transport (" + strategyName + ")"));
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+    }
+
+    /**
+     * connect + getPort + close at a fixed rate (-Dopenloop.rate, per second) or a rate ramping up to -Dopenloop.rampTo,
+     * with per-phase latency percentiles going through the reporter
+     */
+    @Test
+    public void testOpenLoopPortmapQueries() throws Throwable {
+        double rate = Double.parseDouble(System.getProperty("openloop.rate", "1000"));
+        double rampTo = Double.parseDouble(System.getProperty("openloop.rampTo", String.valueOf(rate)));
+        OpenLoopLoadGenerator generator = new OpenLoopLoadGenerator("openLoop", N_THREADS, metrics);
+        generator.run(new OpenLoopLoadGenerator.Operation() {
+            @Override
+            public void execute(OpenLoopLoadGenerator.PhaseTimer timer) throws Exception {
+                OncRpcClient rpcClient = new OncRpcClient(rpcbindAddress, IpProtocolType.TCP);
+                boolean called = false;
+                try {
+                    XdrTransport transport = rpcClient.connect();
+                    timer.phaseDone(OpenLoopLoadGenerator.Phase.CONNECT);
+                    new GenericPortmapClient(transport).getPort(666, 666, "tcp");
+                    requests.mark();
+                    timer.phaseDone(OpenLoopLoadGenerator.Phase.CALL);
+                    called = true;
+                } finally {
+                    rpcClient.close();
+                    if (called) {
+                        timer.phaseDone(OpenLoopLoadGenerator.Phase.CLOSE); //failure paths stay out of the close histogram
+                    }
+                }
+            }
+        }, rate, rampTo, BENCHMARK_MILLIS);
+        reporter.report();
+        if (generator.getLastError() != null) {
+            throw generator.getLastError();
+        }
+    }
+
+    /**
+     * async connect + getPort + close from a single issuing thread, at increasing numbers of operations in flight
+     */
+    @Test
+    public void benchmarkAsyncPortmapQueriesByConcurrency() throws Throwable {
+        int[] concurrencyLevels = {1, 16, 128, 1024};
+        final Meter errors = metrics.meter("asyncErrors");
+        System.err.println(String.format("%12s %12s %12s %12s", "inFlight", "queries/sec", "errors", "bindFailures"));
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try (SharedRpcClientFactory clientFactory = new SharedRpcClientFactory(SharedTcpTransport.ioStrategyFor(System.getProperty("io.strategy", "same")))) {
+            for (int maxInFlight : concurrencyLevels) {
+                AsyncPortmapClient client = new AsyncPortmapClient(clientFactory, maxInFlight, TimeUnit.SECONDS.toMillis(10), timer);
+                final Meter completed = new Meter();
+                final Meter failed = new Meter();
+                final Meter levelBindFailures = new Meter();
+                long start = System.nanoTime();
+                long deadline = System.currentTimeMillis() + BENCHMARK_MILLIS / concurrencyLevels.length;
+                while (System.currentTimeMillis() < deadline) {
+                    client.queryPort(rpcbindAddress, 666, 666, PortmapProtocol.IPPROTO_TCP).whenComplete(new BiConsumer<Integer, Throwable>() {
+                        @Override
+                        public void accept(Integer port, Throwable error) {
+                            if (error == null) {
+                                completed.mark();
+                                requests.mark();
+                                return;
+                            }
+                            failed.mark();
+                            errors.mark();
+                            if (Util.getRootCause(error) instanceof BindException) {
+                                levelBindFailures.mark(); //ephemeral port exhaustion.
+                                bindFailures.mark();
+                            }
+                        }
+                    });
+                }
+                client.drain();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.err.println(String.format("%12d %12.1f %12d %12d", maxInFlight, completed.getCount() / seconds, failed.getCount(), levelBindFailures.getCount()));
+            }
+        } finally {
+            timer.shutdownNow();
+        }
+        reporter.report();
+    }
+
+    /**
+     * the same getPort lookup over tcp with a connection per lookup, over pooled tcp connections,
+     * and over one udp socket shared by all threads
+     */
+    @Test
+    public void benchmarkTcpVersusUdpPortmapQueries() throws Throwable {
+        final Timer tcpTimer = metrics.timer("lookups.tcp");
+        final Timer pooledTcpTimer = metrics.timer("lookups.pooledTcp");
+        final Timer udpTimer = metrics.timer("lookups.udp");
+        runLookups(tcpTimer, new Lookup() {
+            @Override
+            public void lookup() throws Exception {
+                try (OncRpcClient rpcClient = new OncRpcClient(rpcbindAddress, IpProtocolType.TCP)) {
+                    new GenericPortmapClient(rpcClient.connect()).getPort(666, 666, "tcp");
+                }
+            }
+        });
+        try (final OncRpcClientPool pool = new OncRpcClientPool(N_THREADS, N_THREADS, TimeUnit.MINUTES.toMillis(1), metrics)) {
+            runLookups(pooledTcpTimer, new Lookup() {
+                @Override
+                public void lookup() throws Exception {
+                    try (OncRpcClientPool.Lease lease = pool.borrow(rpcbindAddress.getAddress(), IpProtocolType.TCP, rpcbindAddress.getPort())) {
+                        try {
+                            new GenericPortmapClient(lease.getTransport()).getPort(666, 666, "tcp");
+                        } catch (Throwable t) {
+                            lease.invalidate();
+                            throw t;
+                        }
+                    }
+                }
+            });
+        }
+        InetSocketAddress udpAddress = rpcbind != null ? rpcbind.getUdpAddress() : new InetSocketAddress(localhostAddress, 111);
+        try (final UdpPortmapClient udpClient = new UdpPortmapClient(udpAddress, 100, 5, metrics)) {
+            runLookups(udpTimer, new Lookup() {
+                @Override
+                public void lookup() throws Exception {
+                    udpClient.getPort(666, 666, PortmapProtocol.IPPROTO_TCP);
+                }
+            });
+        }
+        reporter.report();
+        System.err.println(String.format("%-12s %12s %12s %12s %12s", "mode", "lookups/sec", "p50 (ms)", "p99 (ms)", "max (ms)"));
+        System.err.println(toRow("tcp", tcpTimer));
+        System.err.println(toRow("pooled tcp", pooledTcpTimer));
+        System.err.println(toRow("udp", udpTimer));
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+    }
+
 //    @Test
     public void testSlowLeakWithGrizzly() throws Throwable {
         ExecutorService executor = Executors.newFixedThreadPool(1);
         Set<Future<Void>> futures = new HashSet<>();
-        InetSocketAddress inetSocketAddress = new InetSocketAddress(localhostAddress, 111);
+        InetSocketAddress inetSocketAddress = rpcbindAddress;
         //on my machine 1 thread wit a 2 milli sleep interval results in no bind exceptions
         executor.submit(new GrizzlyConnectTask(inetSocketAddress, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses, 2)).get();
         Thread.sleep(1000); //let everything calm down
@@ -124,13 +840,24 @@ public class DisconnectLeakTest {
         throw causeOfDeath;
     }
 
+    /**
+     * connect/close churn through one (and then one per core) long-lived selector with -Dnio.concurrency
+     * connects in flight. the ceiling the grizzly and oncrpc4j paths should be compared to
+     */
+    @Test
+    public void benchmarkNioConnectEngine() throws Throwable {
+        runNioConnectEngine(rpcbindAddress, metrics);
+        reporter.report();
+    }
+
     @Test
     public void testLeakWithNio() throws Throwable {
 //        SelectorProvider provider = SelectorProvider.provider();
-        InetSocketAddress inetSocketAddress = new InetSocketAddress(localhostAddress, 111);
+        InetSocketAddress inetSocketAddress = rpcbindAddress;
         while (true) {
             Selector selector = Selector.open();
             SocketChannel socketChannel = SocketChannel.open();
+            ConnectionTracker.GLOBAL.track(socketChannel, inetSocketAddress);
             socketChannel.configureBlocking(false);
             SelectionKey key = socketChannel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE);
             try {
@@ -147,17 +874,198 @@ public class DisconnectLeakTest {
 //            AbstractSelector selector = provider.openSelector();
                 selector.close();
                 socketChannel.close();
+                ConnectionTracker.GLOBAL.closed(socketChannel);
                 successfulCloses.inc();
             } catch (BindException e) {
                 failedOpens.inc();
                 bindFailures.mark();
                 selector.close();
                 socketChannel.close();
+                ConnectionTracker.GLOBAL.closed(socketChannel);
                 successfulCloses.inc();
             }
         }
     }
 
+    /**
+     * runs N_THREADS tasks for SOAK_MILLIS, sampling resource gauges against the number of requests, and fails if any
+     * of them grew faster than allowed (override with -Dleak.maxPerMillion.&lt;gauge&gt;=...). the series goes to
+     * target/leak-&lt;name&gt;-oncrpc4j-&lt;version&gt;-grizzly-&lt;version&gt;.csv/json, versions coming from the pom
+     */
+    private void soakWithLeakGate(String name, TaskFactory factory) throws Throwable {
+        String tcpPrefix = "tcp." + rpcbindAddress.getPort() + ".";
+        LeakSlopeGate gate = new LeakSlopeGate(metrics, requests, TimeUnit.SECONDS.toMillis(1), SOAK_MILLIS / 4)
+                .gate("process.openFds", 10)
+                .gate("process.epollInstances", 1)
+                .gate("process.threads", 1)
+                .gate("process.heapAfterGc", 64 * 1024 * 1024)
+                .gate(tcpPrefix + "ESTABLISHED", 10)
+                .gate(tcpPrefix + "CLOSE_WAIT", 10)
+                .record(tcpPrefix + "TIME_WAIT") //grows for as long as TIME_WAIT lasts, then levels off
+                .record("process.threads.selector")
+                .record("process.threads.worker");
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        Set<Future<Void>> futures = new HashSet<>();
+        gate.start();
+        for (int i = 0; i < N_THREADS; i++) {
+            futures.add(executor.submit(factory.newTask(requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses)));
+        }
+        long deadline = System.currentTimeMillis() + SOAK_MILLIS;
+        while (!die && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        die = true;
+        for (Future<Void> future : futures) {
+            future.get(); //block
+        }
+        executor.shutdown();
+        gate.stop();
+        reporter.report();
+
+        Map<String, String> labels = new LinkedHashMap<>();
+        labels.put("test", name);
+        labels.put("oncrpc4j.version", System.getProperty("oncrpc4j.version", "unknown"));
+        labels.put("grizzly.version", System.getProperty("grizzly.version", "unknown"));
+        labels.put("operations", String.valueOf(requests.getCount()));
+        String fileName = "leak-" + name + "-oncrpc4j-" + labels.get("oncrpc4j.version") + "-grizzly-" + labels.get("grizzly.version");
+        File targetDir = new File("target");
+        //noinspection ResultOfMethodCallIgnored
+        targetDir.mkdirs();
+        gate.writeCsv(new File(targetDir, fileName + ".csv"));
+        gate.writeJson(new File(targetDir, fileName + ".json"), labels);
+        System.err.println(gate.getSummary());
+
+        if (causeOfDeath != null) {
+            throw causeOfDeath;
+        }
+        List<String> violations = gate.getViolations();
+        Assert.assertTrue(violations.toString(), violations.isEmpty());
+    }
+
+    private static int[] intList(String commaSeparated) {
+        String[] parts = commaSeparated.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private BenchmarkRun runBenchmark(TaskFactory factory) throws Exception {
+        return runBenchmark(N_THREADS, factory);
+    }
+
+    private BenchmarkRun runBenchmark(int threads, TaskFactory factory) throws Exception {
+        die = false;
+        Meter requests = new Meter();
+        Meter bindFailures = new Meter();
+        Counter successfulOpens = new Counter();
+        Counter failedOpens = new Counter();
+        Counter successfulCloses = new Counter();
+        Counter failedCloses = new Counter();
+        BenchmarkRun run = new BenchmarkRun();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Set<Future<Void>> futures = new HashSet<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(factory.newTask(requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses)));
+        }
+        long deadline = System.currentTimeMillis() + BENCHMARK_MILLIS;
+        while (!die && System.currentTimeMillis() < deadline) {
+            run.peakThreads = Math.max(run.peakThreads, Util.countLiveThreads());
+            run.peakFds = Math.max(run.peakFds, Util.countOpenFileDescriptors());
+            Thread.sleep(100);
+        }
+        die = true;
+        for (Future<Void> future : futures) {
+            future.get(); //block
+        }
+        run.connectsPerSec = requests.getCount() / ((System.nanoTime() - start) / 1e9);
+        run.bindFailures = bindFailures.getCount();
+        executor.shutdown();
+        return run;
+    }
+
+    private void runLookups(final Timer timer, final Lookup lookup) throws Exception {
+        runBenchmark(new TaskFactory() {
+            @Override
+            public Callable<Void> newTask(Meter requests, final Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+                return new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        while (!die) {
+                            long start = System.nanoTime();
+                            try {
+                                lookup.lookup();
+                                timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                            } catch (Throwable t) {
+                                //noinspection ThrowableResultOfMethodCallIgnored
+                                Throwable root = Util.getRootCause(t);
+                                if (root instanceof BindException) {
+                                    bindFailures.mark(); //ephemeral port exhaustion.
+                                    continue;
+                                }
+                                causeOfDeath = t;
+                                die = true;
+                            }
+                        }
+                        return null;
+                    }
+                };
+            }
+        });
+    }
+
+    private static String toRow(String mode, Timer timer) {
+        Snapshot snapshot = timer.getSnapshot();
+        return String.format("%-12s %12.1f %12.3f %12.3f %12.3f", mode, timer.getMeanRate(),
+                snapshot.getMedian() / 1e6, snapshot.get99thPercentile() / 1e6, snapshot.getMax() / 1e6);
+    }
+
+    static void runNioConnectEngine(InetSocketAddress target, MetricRegistry metrics) throws Exception {
+        int concurrency = Integer.getInteger("nio.concurrency", 1000);
+        System.err.println(String.format("%10s %12s %12s %12s %12s %12s", "selectors", "connects/sec", "refused/sec", "bindFailures", "otherFails", "peakFds"));
+        for (int selectors : new int[] {1, Runtime.getRuntime().availableProcessors()}) {
+            NioConnectEngine engine = new NioConnectEngine(target, selectors, Math.max(1, concurrency / selectors));
+            int peakFds = 0;
+            long start = System.nanoTime();
+            engine.start();
+            try {
+                long deadline = System.currentTimeMillis() + BENCHMARK_MILLIS / 2;
+                while (System.currentTimeMillis() < deadline) {
+                    peakFds = Math.max(peakFds, Util.countOpenFileDescriptors());
+                    Thread.sleep(100);
+                }
+            } finally {
+                engine.close();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.println(String.format("%10d %12.1f %12.1f %12d %12d %12d", selectors, engine.getConnects() / seconds, engine.getRefusals() / seconds,
+                    engine.getBindFailures(), engine.getOtherFailures(), peakFds));
+            metrics.counter("nioEngine.connects").inc(engine.getConnects());
+            metrics.counter("nioEngine.refusals").inc(engine.getRefusals());
+        }
+    }
+
+    private interface Lookup {
+        void lookup() throws Exception;
+    }
+
+    private interface TaskFactory {
+        Callable<Void> newTask(Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses);
+    }
+
+    private static class BenchmarkRun {
+        private double connectsPerSec;
+        private long bindFailures;
+        private int peakThreads;
+        private int peakFds;
+
+        private String toRow(String mode) {
+            return String.format("%-30s %12.1f %12d %12d %12d", mode, connectsPerSec, bindFailures, peakThreads, peakFds);
+        }
+    }
+
     private static class GrizzlyConnectTask implements Callable<Void> {
         private final InetSocketAddress address;
         private final Meter requests;
@@ -167,8 +1075,16 @@ public class DisconnectLeakTest {
         private final Counter successfulCloses;
         private final Counter failedCloses;
         private final long sleepMillis;
+        private final CloseReaper reaper;
 
         public GrizzlyConnectTask(InetSocketAddress address, Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses, long sleepMillis) {
+            this(address, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses, sleepMillis, null);
+        }
+
+        /**
+         * @param reaper what to hand transports over to for shutdown, null to shut them down in-line
+         */
+        public GrizzlyConnectTask(InetSocketAddress address, Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses, long sleepMillis, CloseReaper reaper) {
             this.address = address;
             this.requests = requests;
             this.bindFailures = bindFailures;
@@ -177,6 +1093,7 @@ public class DisconnectLeakTest {
             this.successfulCloses = successfulCloses;
             this.failedCloses = failedCloses;
             this.sleepMillis = sleepMillis;
+            this.reaper = reaper;
         }
 
         @Override
@@ -189,6 +1106,7 @@ public class DisconnectLeakTest {
                 boolean opened = false;
                 try {
                     transport = TCPNIOTransportBuilder.newInstance().setIOStrategy(SameThreadIOStrategy.getInstance()).build();
+                    ConnectionTracker.GLOBAL.track(transport, address);
                     transport.start();
                     transport.connect(address).get(); //block
                     opened = true;
@@ -207,9 +1125,12 @@ public class DisconnectLeakTest {
                     if (!opened) {
                         failedOpens.inc();
                     }
-                    if (transport != null) {
+                    if (transport != null && reaper != null) {
+                        reaper.reap(transport, successfulCloses, failedCloses); //counted once shut down
+                    } else if (transport != null) {
                         try {
                             transport.shutdown().get(); //block
+                            ConnectionTracker.GLOBAL.closed(transport);
                             successfulCloses.inc(); //successful close
                         } catch (Throwable t) {
                             failedCloses.inc();
@@ -226,12 +1147,105 @@ public class DisconnectLeakTest {
         }
     }
 
+    private static class SharedGrizzlyConnectTask implements Callable<Void> {
+        private final SharedTcpTransport transport;
+        private final InetSocketAddress address;
+        private final LocalAddressAllocator localAddresses;
+        private final AdaptiveConcurrencyLimiter limiter;
+        private final Meter requests;
+        private final Meter bindFailures;
+        private final Counter successfulOpens;
+        private final Counter failedOpens;
+        private final Counter successfulCloses;
+        private final Counter failedCloses;
+
+        public SharedGrizzlyConnectTask(SharedTcpTransport transport, InetSocketAddress address, LocalAddressAllocator localAddresses, Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+            this(transport, address, localAddresses, null, requests, bindFailures, successfulOpens, failedOpens, successfulCloses, failedCloses);
+        }
+
+        /**
+         * @param localAddresses where to take local addresses from, null to let the kernel pick ephemeral ports
+         * @param limiter what to acquire a permit from before every connect, null to connect as fast as possible
+         */
+        public SharedGrizzlyConnectTask(SharedTcpTransport transport, InetSocketAddress address, LocalAddressAllocator localAddresses, AdaptiveConcurrencyLimiter limiter, Meter requests, Meter bindFailures, Counter successfulOpens, Counter failedOpens, Counter successfulCloses, Counter failedCloses) {
+            this.transport = transport;
+            this.address = address;
+            this.localAddresses = localAddresses;
+            this.limiter = limiter;
+            this.requests = requests;
+            this.bindFailures = bindFailures;
+            this.successfulOpens = successfulOpens;
+            this.failedOpens = failedOpens;
+            this.successfulCloses = successfulCloses;
+            this.failedCloses = failedCloses;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            while (!die) {
+                Connection connection = null;
+                InetSocketAddress localAddress = null;
+                boolean overloaded = false;
+                long started = limiter != null ? limiter.acquire() : 0;
+                long connected = 0;
+                try {
+                    if (localAddresses != null) {
+                        localAddress = localAddresses.acquire(TimeUnit.MINUTES.toMillis(2));
+                    }
+                    connection = transport.connect(address, localAddress);
+                    connected = System.nanoTime();
+                    successfulOpens.inc(); //successful open
+                    requests.mark();
+                } catch (Throwable t) {
+                    failedOpens.inc();
+                    //noinspection ThrowableResultOfMethodCallIgnored
+                    Throwable root = Util.getRootCause(t);
+                    if (root instanceof BindException) {
+                        bindFailures.mark(); //ephemeral port exhaustion.
+                        overloaded = true;
+                        continue;
+                    }
+                    causeOfDeath = t;
+                    die = true;
+                } finally {
+                    if (localAddress != null) {
+                        localAddresses.release(localAddress, connection != null);
+                    }
+                    if (connection != null) {
+                        try {
+                            connection.close().get(); //block
+                            successfulCloses.inc(); //successful close
+                        } catch (Throwable t) {
+                            failedCloses.inc();
+                            System.err.println("while trying to close connection");
+                            t.printStackTrace();
+                        }
+                    } else {
+                        //no connection == successful close
+                        successfulCloses.inc();
+                    }
+                    if (limiter != null) {
+                        //only once the connection is closed, so the limit bounds live connections
+                        if (connection != null) {
+                            limiter.onSuccess(started, connected);
+                        } else if (overloaded) {
+                            limiter.onOverload();
+                        } else {
+                            limiter.onIgnore();
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
     private static class PortmapQueryTask implements Callable<Void> {
-        private final InetAddress address;
+        private final InetSocketAddress address;
         private final Meter requests;
         private final Meter bindFailures;
 
-        public PortmapQueryTask(InetAddress address, Meter requests, Meter bindFailures) {
+        public PortmapQueryTask(InetSocketAddress address, Meter requests, Meter bindFailures) {
             this.address = address;
             this.requests = requests;
             this.bindFailures = bindFailures;
@@ -240,7 +1254,7 @@ public class DisconnectLeakTest {
         @Override
         public Void call() throws Exception {
             while (!die) {
-                try (OncRpcClient rpcClient = new OncRpcClient(address, IpProtocolType.TCP, 111)) {
+                try (OncRpcClient rpcClient = new OncRpcClient(address, IpProtocolType.TCP)) {
                     XdrTransport transport = rpcClient.connect();
                     GenericPortmapClient portmapClient = new GenericPortmapClient(transport);
                     String port = portmapClient.getPort(666, 666, "tcp");
@@ -260,4 +1274,89 @@ public class DisconnectLeakTest {
             return null;
         }
     }
+
+    private static class SharedPortmapQueryTask implements Callable<Void> {
+        private final SharedRpcClientFactory clientFactory;
+        private final InetSocketAddress address;
+        private final LocalAddressAllocator localAddresses;
+        private final Meter requests;
+        private final Meter bindFailures;
+
+        /**
+         * @param localAddresses where to take local addresses from, null to let the kernel pick ephemeral ports
+         */
+        public SharedPortmapQueryTask(SharedRpcClientFactory clientFactory, InetSocketAddress address, LocalAddressAllocator localAddresses, Meter requests, Meter bindFailures) {
+            this.clientFactory = clientFactory;
+            this.address = address;
+            this.localAddresses = localAddresses;
+            this.requests = requests;
+            this.bindFailures = bindFailures;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            while (!die) {
+                try (SharedRpcClientFactory.Client rpcClient = clientFactory.newClient(address, localAddresses)) {
+                    XdrTransport transport = rpcClient.connect();
+                    GenericPortmapClient portmapClient = new GenericPortmapClient(transport);
+                    String port = portmapClient.getPort(666, 666, "tcp");
+                    requests.mark();
+                } catch (Throwable t) {
+                    //noinspection ThrowableResultOfMethodCallIgnored
+                    Throwable root = Util.getRootCause(t);
+                    if (root instanceof BindException) {
+                        bindFailures.mark(); //ephemeral port exhaustion.
+                        continue;
+                    }
+                    causeOfDeath = t;
+                    die = true;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class PooledPortmapQueryTask implements Callable<Void> {
+        private final InetSocketAddress address;
+        private final OncRpcClientPool pool;
+        private final Meter requests;
+        private final Meter bindFailures;
+
+        public PooledPortmapQueryTask(InetSocketAddress address, OncRpcClientPool pool, Meter requests, Meter bindFailures) {
+            this.address = address;
+            this.pool = pool;
+            this.requests = requests;
+            this.bindFailures = bindFailures;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            while (!die) {
+                OncRpcClientPool.Lease lease = null;
+                try {
+                    lease = pool.borrow(address.getAddress(), IpProtocolType.TCP, address.getPort());
+                    GenericPortmapClient portmapClient = new GenericPortmapClient(lease.getTransport());
+                    String port = portmapClient.getPort(666, 666, "tcp");
+                    requests.mark();
+                } catch (Throwable t) {
+                    if (lease != null) {
+                        lease.invalidate(); //dont give a possibly broken connection back to the pool
+                    }
+                    //noinspection ThrowableResultOfMethodCallIgnored
+                    Throwable root = Util.getRootCause(t);
+                    if (root instanceof BindException) {
+                        bindFailures.mark(); //ephemeral port exhaustion.
+                        continue;
+                    }
+                    causeOfDeath = t;
+                    die = true;
+                } finally {
+                    if (lease != null) {
+                        lease.close();
+                    }
+                }
+            }
+            return null;
+        }
+    }
 }
@@ -0,0 +1,91 @@
+package net.radai;
+
+import org.dcache.utils.net.InetSocketAddresses;
+import org.dcache.xdr.IpProtocolType;
+import org.dcache.xdr.OncRpcClient;
+import org.dcache.xdr.OncRpcProgram;
+import org.dcache.xdr.OncRpcSvc;
+import org.dcache.xdr.OncRpcSvcBuilder;
+import org.dcache.xdr.portmap.GenericPortmapClient;
+import org.dcache.xdr.portmap.OncRpcPortmap;
+import org.dcache.xdr.portmap.OncRpcbindServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * an in-process portmap/rpcbind (oncrpc4j's own {@link OncRpcbindServer}) on ephemeral tcp and udp ports,
+ * so load tests don't depend on (or hammer) whatever rpcbind the host runs.
+ * comes up with the bogus "bob" program (666, 666) registered on tcp port 666.
+ * @author Radai Rosenblatt
+ */
+public class EmbeddedRpcbind implements Closeable {
+    public static final int BOB_PROGRAM = 666;
+    public static final int BOB_VERSION = 666;
+
+    private final String bindAddress;
+    private final OncRpcSvc svc;
+
+    public EmbeddedRpcbind() throws Exception {
+        this("127.0.0.1", 0, 0);
+    }
+
+    /**
+     * @param selectorThreads selector pool size, 0 for the oncrpc4j default
+     * @param workerThreads worker pool size, 0 for the oncrpc4j default
+     */
+    public EmbeddedRpcbind(String bindAddress, int selectorThreads, int workerThreads) throws Exception {
+        this.bindAddress = bindAddress;
+        OncRpcSvcBuilder builder = new OncRpcSvcBuilder()
+                .withTCP()
+                .withUDP()
+                .withBindAddress(bindAddress)
+                .withPort(0) //ephemeral
+                .withWorkerThreadIoStrategy()
+                .withoutAutoPublish()
+                .withServiceName("embedded-rpcbind");
+        if (selectorThreads > 0) {
+            builder.withSelectorThreadPoolSize(selectorThreads);
+        }
+        if (workerThreads > 0) {
+            builder.withWorkerThreadPoolSize(workerThreads);
+        }
+        svc = builder.build();
+        OncRpcbindServer rpcbind = new OncRpcbindServer();
+        //GenericPortmapClient speaks rpcbind v4 and falls back to portmap v2
+        for (int version : new int[] {OncRpcPortmap.PORTMAP_V2, 3, 4}) {
+            svc.register(new OncRpcProgram(OncRpcPortmap.PORTMAP_PROGRAMM, version), rpcbind);
+        }
+        svc.start();
+        try {
+            register(BOB_PROGRAM, BOB_VERSION, "tcp", InetSocketAddresses.uaddrOf(bindAddress, 666), "bob");
+        } catch (Throwable t) {
+            svc.stop();
+            throw t;
+        }
+    }
+
+    public InetSocketAddress getTcpAddress() {
+        return svc.getInetSocketAddress(IpProtocolType.TCP);
+    }
+
+    public InetSocketAddress getUdpAddress() {
+        return svc.getInetSocketAddress(IpProtocolType.UDP);
+    }
+
+    public String getBindAddress() {
+        return bindAddress;
+    }
+
+    public boolean register(int prog, int vers, String netid, String uaddr, String owner) throws Exception {
+        try (OncRpcClient rpcClient = new OncRpcClient(getTcpAddress(), IpProtocolType.TCP)) {
+            return new GenericPortmapClient(rpcClient.connect()).setPort(prog, vers, netid, uaddr, owner);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        svc.stop();
+    }
+}
@@ -0,0 +1,195 @@
+package net.radai;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * per-endpoint circuit breaker for connects. once an endpoint has refused failureThreshold connects in a row its
+ * circuit opens, and connects to it fail right away - no transport, no syscall, no exception chain, just a
+ * preallocated stackless {@link OpenCircuitException}. after openMillis a single probe is let through (half-open):
+ * if it connects the circuit closes, if it is refused again the circuit stays open for twice as long
+ * (up to maxOpenMillis).
+ * <br>
+ * usage is checkAllowed() before connecting, then onSuccess() or onFailure() with whatever the connect threw - on the
+ * same thread, that is how the probe's outcome is told apart from late outcomes of attempts that started before the
+ * circuit opened.
+ * @author Radai Rosenblatt
+ */
+public class EndpointCircuitBreaker {
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final long maxOpenNanos;
+    private final MetricRegistry metrics;
+    private final ConcurrentMap<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Meter fastFails;
+    private final Meter opened;
+    private final Meter probes;
+
+    public EndpointCircuitBreaker(int failureThreshold, long openMillis, long maxOpenMillis, MetricRegistry metrics) {
+        if (failureThreshold < 1 || openMillis < 1 || maxOpenMillis < openMillis) {
+            throw new IllegalArgumentException("need failureThreshold >= 1 and 1 <= openMillis <= maxOpenMillis");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.maxOpenNanos = TimeUnit.MILLISECONDS.toNanos(maxOpenMillis);
+        this.metrics = metrics;
+        this.fastFails = metrics.meter("breaker.fastFails");
+        this.opened = metrics.meter("breaker.opened");
+        this.probes = metrics.meter("breaker.probes");
+    }
+
+    /**
+     * @throws OpenCircuitException if the endpoint's circuit is open (or half-open with a probe already in flight)
+     */
+    public void checkAllowed(InetSocketAddress address) throws OpenCircuitException {
+        Endpoint endpoint = endpointFor(address);
+        int state = endpoint.state.get();
+        if (state == Endpoint.CLOSED) {
+            return;
+        }
+        if (state == Endpoint.OPEN && System.nanoTime() - endpoint.retryAtNanos >= 0 && endpoint.state.compareAndSet(Endpoint.OPEN, Endpoint.HALF_OPEN)) {
+            endpoint.probeThreadId = Thread.currentThread().getId();
+            probes.mark();
+            return; //this caller is the probe
+        }
+        fastFails.mark();
+        throw endpoint.openCircuit;
+    }
+
+    public void onSuccess(InetSocketAddress address) {
+        Endpoint endpoint = endpointFor(address);
+        endpoint.consecutiveRefusals.set(0);
+        int state = endpoint.state.get();
+        if (state == Endpoint.HALF_OPEN && !isProbe(endpoint)) {
+            return; //only the probe decides
+        }
+        if (state != Endpoint.CLOSED) {
+            endpoint.currentOpenNanos = openNanos;
+            endpoint.state.set(Endpoint.CLOSED);
+        }
+    }
+
+    /**
+     * @param failure whatever the connect threw. only refusals count towards opening the circuit, but any failure
+     *                of a probe keeps it open
+     */
+    public void onFailure(InetSocketAddress address, Throwable failure) {
+        Endpoint endpoint = endpointFor(address);
+        Throwable root = Util.getRootCause(failure);
+        boolean refused = root instanceof ConnectException && !(root instanceof OpenCircuitException);
+        if (endpoint.state.get() == Endpoint.HALF_OPEN) {
+            if (!isProbe(endpoint)) {
+                return; //a late failure of an attempt from before the circuit opened, not the probe's
+            }
+            if (refused) {
+                endpoint.currentOpenNanos = Math.min(maxOpenNanos, endpoint.currentOpenNanos * 2);
+            }
+            endpoint.retryAtNanos = System.nanoTime() + endpoint.currentOpenNanos;
+            endpoint.state.set(Endpoint.OPEN);
+            return;
+        }
+        if (refused && endpoint.consecutiveRefusals.incrementAndGet() >= failureThreshold) {
+            long retryAtNanos = System.nanoTime() + endpoint.currentOpenNanos;
+            //only whoever opens the circuit sets the retry time, refusals still in flight must not push it out
+            synchronized (endpoint) {
+                if (endpoint.state.get() == Endpoint.CLOSED) {
+                    endpoint.retryAtNanos = retryAtNanos;
+                    endpoint.state.set(Endpoint.OPEN);
+                    opened.mark();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how long until the endpoint's circuit lets a probe through, 0 if it would right now or is not open.
+     *         also 0 while a probe is in flight - its outcome decides, so there is no telling
+     */
+    public long nanosUntilRetry(InetSocketAddress address) {
+        Endpoint endpoint = endpoints.get(address);
+        if (endpoint == null || endpoint.state.get() != Endpoint.OPEN) {
+            return 0;
+        }
+        return Math.max(0, endpoint.retryAtNanos - System.nanoTime());
+    }
+
+    public State getState(InetSocketAddress address) {
+        Endpoint endpoint = endpoints.get(address);
+        return endpoint == null ? State.CLOSED : State.values()[endpoint.state.get()];
+    }
+
+    private static boolean isProbe(Endpoint endpoint) {
+        return endpoint.probeThreadId == Thread.currentThread().getId();
+    }
+
+    private Endpoint endpointFor(InetSocketAddress address) {
+        Endpoint endpoint = endpoints.get(address);
+        if (endpoint != null) {
+            return endpoint;
+        }
+        Endpoint created = new Endpoint(address, openNanos);
+        endpoint = endpoints.putIfAbsent(address, created);
+        if (endpoint != null) {
+            return endpoint;
+        }
+        final InetSocketAddress key = address;
+        String name = "breaker." + address.getHostString() + ":" + address.getPort() + ".state";
+        Gauge<String> gauge = new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return getState(key).name();
+            }
+        };
+        //another breaker (or an earlier run) on the same registry may have a gauge for this endpoint already, this
+        //breaker's state takes over. register() would throw
+        synchronized (metrics) {
+            metrics.remove(name);
+            metrics.register(name, gauge);
+        }
+        return created;
+    }
+
+    /**
+     * thrown (the same instance every time, per endpoint) instead of connecting to an endpoint whose circuit is open.
+     * extends ConnectException so callers that already handle refusals handle this too
+     */
+    public static class OpenCircuitException extends ConnectException {
+        private OpenCircuitException(InetSocketAddress address) {
+            super("circuit open for " + address);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this; //no stack trace, it would be the same one every time anyway
+        }
+    }
+
+    private static class Endpoint {
+        //ordinals of State
+        private static final int CLOSED = 0;
+        private static final int OPEN = 1;
+        private static final int HALF_OPEN = 2;
+
+        private final AtomicInteger state = new AtomicInteger(CLOSED);
+        private final AtomicInteger consecutiveRefusals = new AtomicInteger(0);
+        private final OpenCircuitException openCircuit;
+        private volatile long retryAtNanos;
+        private volatile long currentOpenNanos;
+        private volatile long probeThreadId = -1;
+
+        private Endpoint(InetSocketAddress address, long openNanos) {
+            this.openCircuit = new OpenCircuitException(address);
+            this.currentOpenNanos = openNanos;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package net.radai;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * records time series of resource gauges (see {@link ProcessResourceGauges}) against an operation count during a soak
+ * run, fits a least-squares line to each series and flags every gauge that grows faster than its allowance per
+ * million operations. a leak of one fd per connect shows up as a slope of ~1,000,000 per million, steady state as ~0.
+ * <br>
+ * samples taken during warmup (thread pools filling up, TIME_WAIT building up to its steady state, jit) are recorded
+ * but left out of the fit. the whole series can be written out as csv and json, to diff runs against each other.
+ * @author Radai Rosenblatt
+ */
+public class LeakSlopeGate {
+    private final MetricRegistry metrics;
+    private final Counting operations;
+    private final long sampleIntervalMillis;
+    private final long warmupMillis;
+    private final Map<String, Double> maxGrowthPerMillion = new LinkedHashMap<>(); //gauge name to allowance, NaN for record-only
+    private final List<Sample> samples = new ArrayList<>();
+    private ScheduledExecutorService sampler;
+    private long startMillis;
+
+    /**
+     * @param operations what to measure growth against (a connect/close cycle counter, for example)
+     */
+    public LeakSlopeGate(MetricRegistry metrics, Counting operations, long sampleIntervalMillis, long warmupMillis) {
+        this.metrics = metrics;
+        this.operations = operations;
+        this.sampleIntervalMillis = sampleIntervalMillis;
+        this.warmupMillis = warmupMillis;
+    }
+
+    /**
+     * fails the gate if the given gauge grows by more than maxGrowthPerMillion per million operations.
+     * the allowance can be overridden with -Dleak.maxPerMillion.&lt;gaugeName&gt;=...
+     * gauges have to be added before start()
+     */
+    public LeakSlopeGate gate(String gaugeName, double maxGrowthPerMillion) {
+        String override = System.getProperty("leak.maxPerMillion." + gaugeName);
+        this.maxGrowthPerMillion.put(gaugeName, override != null ? Double.parseDouble(override) : maxGrowthPerMillion);
+        return this;
+    }
+
+    /**
+     * records the given gauge without gating on it
+     */
+    public LeakSlopeGate record(String gaugeName) {
+        this.maxGrowthPerMillion.put(gaugeName, Double.NaN);
+        return this;
+    }
+
+    public synchronized void start() {
+        startMillis = System.currentTimeMillis();
+        sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, 0, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * stops sampling and takes one last sample
+     */
+    public void stop() throws InterruptedException {
+        sampler.shutdown();
+        sampler.awaitTermination(1, TimeUnit.MINUTES);
+        sample();
+    }
+
+    /**
+     * @return growth of the given gauge per million operations past warmup, NaN if there is not enough data to tell
+     */
+    public synchronized double getSlopePerMillion(String gaugeName) {
+        int index = indexOf(gaugeName);
+        //least squares: slope = sum((x - meanX) * (y - meanY)) / sum((x - meanX)^2)
+        int n = 0;
+        double sumX = 0;
+        double sumY = 0;
+        for (Sample sample : samples) {
+            if (sample.elapsedMillis >= warmupMillis && !Double.isNaN(sample.values[index])) {
+                n++;
+                sumX += sample.operations;
+                sumY += sample.values[index];
+            }
+        }
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double meanX = sumX / n;
+        double meanY = sumY / n;
+        double covariance = 0;
+        double variance = 0;
+        for (Sample sample : samples) {
+            if (sample.elapsedMillis >= warmupMillis && !Double.isNaN(sample.values[index])) {
+                double dx = sample.operations - meanX;
+                covariance += dx * (sample.values[index] - meanY);
+                variance += dx * dx;
+            }
+        }
+        return variance == 0 ? Double.NaN : covariance / variance * 1e6;
+    }
+
+    /**
+     * @return one line per gated gauge that grew faster than allowed, empty if everything is within bounds
+     */
+    public synchronized List<String> getViolations() {
+        List<String> violations = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : maxGrowthPerMillion.entrySet()) {
+            double allowed = entry.getValue();
+            double slope = getSlopePerMillion(entry.getKey());
+            if (!Double.isNaN(allowed) && slope > allowed) {
+                violations.add(String.format("%s grew by %.1f per million operations (allowed %.1f)", entry.getKey(), slope, allowed));
+            }
+        }
+        return violations;
+    }
+
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder(String.format("%-30s %16s %16s%n", "gauge", "slope/M ops", "allowed/M ops"));
+        for (Map.Entry<String, Double> entry : maxGrowthPerMillion.entrySet()) {
+            sb.append(String.format("%-30s %16.1f %16.1f%n", entry.getKey(), getSlopePerMillion(entry.getKey()), entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    public synchronized void writeCsv(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.print("elapsedMillis,operations");
+            for (String name : maxGrowthPerMillion.keySet()) {
+                writer.print("," + name);
+            }
+            writer.println();
+            for (Sample sample : samples) {
+                writer.print(sample.elapsedMillis + "," + sample.operations);
+                for (double value : sample.values) {
+                    writer.print("," + (Double.isNaN(value) ? "" : format(value)));
+                }
+                writer.println();
+            }
+        }
+    }
+
+    /**
+     * @param labels written out as-is at the top level of the document (library versions, for example)
+     */
+    public synchronized void writeJson(File file, Map<String, String> labels) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("{");
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                writer.println("  " + quote(label.getKey()) + ": " + quote(label.getValue()) + ",");
+            }
+            writer.println("  \"gauges\": {");
+            int index = 0;
+            for (Map.Entry<String, Double> entry : maxGrowthPerMillion.entrySet()) {
+                writer.println("    " + quote(entry.getKey()) + ": {");
+                writer.println("      \"slopePerMillion\": " + jsonNumber(getSlopePerMillion(entry.getKey())) + ",");
+                writer.println("      \"allowedPerMillion\": " + jsonNumber(entry.getValue()) + ",");
+                writer.print("      \"series\": [");
+                for (int i = 0; i < samples.size(); i++) {
+                    Sample sample = samples.get(i);
+                    writer.print((i == 0 ? "" : ", ") + "[" + sample.elapsedMillis + ", " + sample.operations + ", " + jsonNumber(sample.values[index]) + "]");
+                }
+                writer.println("]");
+                writer.println("    }" + (++index < maxGrowthPerMillion.size() ? "," : ""));
+            }
+            writer.println("  }");
+            writer.println("}");
+        }
+    }
+
+    private synchronized void sample() {
+        @SuppressWarnings("rawtypes")
+        Map<String, Gauge> gauges = metrics.getGauges();
+        double[] values = new double[maxGrowthPerMillion.size()];
+        int i = 0;
+        for (String name : maxGrowthPerMillion.keySet()) {
+            Gauge<?> gauge = gauges.get(name);
+            Object value = gauge == null ? null : gauge.getValue();
+            //negative readings mean "not available" (see ProcessResourceGauges)
+            values[i++] = value instanceof Number && ((Number) value).doubleValue() >= 0 ? ((Number) value).doubleValue() : Double.NaN;
+        }
+        samples.add(new Sample(System.currentTimeMillis() - startMillis, operations.getCount(), values));
+    }
+
+    private int indexOf(String gaugeName) {
+        int index = 0;
+        for (String name : maxGrowthPerMillion.keySet()) {
+            if (name.equals(gaugeName)) {
+                return index;
+            }
+            index++;
+        }
+        throw new IllegalArgumentException("not tracking " + gaugeName);
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    private static String jsonNumber(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : format(value);
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static class Sample {
+        private final long elapsedMillis;
+        private final long operations;
+        private final double[] values; //in gauge registration order
+
+        private Sample(long elapsedMillis, long operations, double[] values) {
+            this.elapsedMillis = elapsedMillis;
+            this.operations = operations;
+            this.values = values;
+        }
+    }
+}
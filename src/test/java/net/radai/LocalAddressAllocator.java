@@ -0,0 +1,164 @@
+package net.radai;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hands out explicit local (source address, port) pairs for outgoing connections, spread over several source
+ * addresses and an explicit port range, instead of leaving it to the kernel's ephemeral port range.
+ * with N source addresses the same remote endpoint can take N times as many connections.
+ * <br>
+ * the side that closes a tcp connection first keeps its port in TIME_WAIT (60 seconds on linux), so a released port
+ * cools down for timeWaitMillis before it is handed out again. ports of connections that never got established
+ * (refused, failed) are reusable right away. when nothing is free, acquire() waits for a port to cool down instead
+ * of letting the connect fail with a {@link BindException}.
+ * <br>
+ * ports inside the kernel's own ephemeral range (/proc/sys/net/ipv4/ip_local_port_range) are never handed out - the
+ * kernel may already have given any of them to some other socket, and binding to it would fail.
+ * @author Radai Rosenblatt
+ */
+public class LocalAddressAllocator {
+    private final long timeWaitNanos;
+    private final Deque<InetSocketAddress> free = new ArrayDeque<>();
+    private final Deque<Cooling> coolingDown = new ArrayDeque<>(); //ordered by release time
+    private final Meter exhausted;
+
+    public LocalAddressAllocator(List<InetAddress> sourceAddresses, int minPort, int maxPort, long timeWaitMillis, MetricRegistry metrics) {
+        if (sourceAddresses.isEmpty() || minPort < 1 || maxPort > 65535 || minPort > maxPort) {
+            throw new IllegalArgumentException("bad source addresses " + sourceAddresses + " or port range " + minPort + "-" + maxPort);
+        }
+        this.timeWaitNanos = TimeUnit.MILLISECONDS.toNanos(timeWaitMillis);
+        int[] ephemeral = ephemeralPortRange();
+        //interleaved, so consecutive connections come from different source addresses
+        for (int port = minPort; port <= maxPort; port++) {
+            if (port >= ephemeral[0] && port <= ephemeral[1]) {
+                continue;
+            }
+            for (InetAddress address : sourceAddresses) {
+                free.addLast(new InetSocketAddress(address, port));
+            }
+        }
+        if (free.isEmpty()) {
+            throw new IllegalArgumentException("port range " + minPort + "-" + maxPort + " is all inside the ephemeral range " + ephemeral[0] + "-" + ephemeral[1]);
+        }
+        exhausted = metrics.meter("localPorts.exhausted");
+        metrics.register("localPorts.free", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getFreeCount();
+            }
+        });
+        metrics.register("localPorts.timeWait", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getTimeWaitCount();
+            }
+        });
+    }
+
+    /**
+     * @return 127.0.0.1 ... 127.0.0.count, all of which are routed to loopback on linux
+     */
+    public static List<InetAddress> loopbackAddresses(int count) throws UnknownHostException {
+        if (count < 1 || count > 254) {
+            throw new IllegalArgumentException("count must be within [1, 254]: " + count);
+        }
+        List<InetAddress> addresses = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            addresses.add(InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) i}));
+        }
+        return addresses;
+    }
+
+    /**
+     * @return {low, high} of the kernel's ephemeral port range, the linux default (32768-60999) if it cannot be read
+     */
+    public static int[] ephemeralPortRange() {
+        try {
+            String[] range = new String(Files.readAllBytes(Paths.get("/proc/sys/net/ipv4/ip_local_port_range")), StandardCharsets.US_ASCII).trim().split("\\s+");
+            return new int[] {Integer.parseInt(range[0]), Integer.parseInt(range[1])};
+        } catch (IOException | RuntimeException e) {
+            return new int[] {32768, 60999};
+        }
+    }
+
+    /**
+     * @return a local address to bind the next connection to, waiting up to timeoutMillis for one to free up
+     * @throws BindException if none became free in time
+     */
+    public synchronized InetSocketAddress acquire(long timeoutMillis) throws BindException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        reclaimCooledDown();
+        if (free.isEmpty()) {
+            exhausted.mark();
+        }
+        while (free.isEmpty()) {
+            long waitNanos = deadline - System.nanoTime();
+            if (!coolingDown.isEmpty()) {
+                waitNanos = Math.min(waitNanos, coolingDown.peekFirst().releasedAtNanos + timeWaitNanos - System.nanoTime());
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                throw new BindException("no free local port within " + timeoutMillis + " millis (" + coolingDown.size() + " in TIME_WAIT)");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1));
+            reclaimCooledDown();
+        }
+        return free.pollFirst();
+    }
+
+    /**
+     * @param established true if the connection was established (and then closed by us), false if it never was
+     */
+    public synchronized void release(InetSocketAddress local, boolean established) {
+        if (established) {
+            coolingDown.addLast(new Cooling(local, System.nanoTime()));
+        } else {
+            free.addLast(local);
+        }
+        notifyAll(); //waiters recompute how long until the head of coolingDown is free
+    }
+
+    public synchronized int getFreeCount() {
+        reclaimCooledDown();
+        return free.size();
+    }
+
+    public synchronized int getTimeWaitCount() {
+        reclaimCooledDown();
+        return coolingDown.size();
+    }
+
+    private void reclaimCooledDown() {
+        long now = System.nanoTime();
+        Cooling head;
+        while ((head = coolingDown.peekFirst()) != null && now - head.releasedAtNanos >= timeWaitNanos) {
+            coolingDown.pollFirst();
+            free.addLast(head.address);
+        }
+    }
+
+    private static class Cooling {
+        private final InetSocketAddress address;
+        private final long releasedAtNanos;
+
+        private Cooling(InetSocketAddress address, long releasedAtNanos) {
+            this.address = address;
+            this.releasedAtNanos = releasedAtNanos;
+        }
+    }
+}
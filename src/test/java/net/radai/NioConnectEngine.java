@@ -0,0 +1,204 @@
+package net.radai;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * a bare-bones connect/close churn engine: a few long-lived selectors, each keeping up to concurrencyPerSelector
+ * non-blocking connects in flight at all times and closing every connection as soon as OP_CONNECT resolves
+ * (established, refused or failed). no per-event allocation beyond what the jdk itself does (the selected keys
+ * iterator per select round, and the exception thrown by finishConnect on refusal), so this is the ceiling that the
+ * grizzly and oncrpc4j connect paths can be measured against.
+ * @author Radai Rosenblatt
+ */
+public class NioConnectEngine implements Closeable {
+    private final InetSocketAddress target;
+    private final int concurrencyPerSelector;
+    private final SelectorLoop[] loops;
+    private volatile boolean running = false;
+
+    public NioConnectEngine(InetSocketAddress target, int selectors, int concurrencyPerSelector) {
+        this.target = target;
+        this.concurrencyPerSelector = concurrencyPerSelector;
+        this.loops = new SelectorLoop[selectors];
+    }
+
+    public void start() throws IOException {
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(Selector.open());
+            Thread thread = new Thread(loops[i], "nio-connect-engine-" + i);
+            thread.setDaemon(true);
+            loops[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * stops all selector loops, closing every connection still in flight
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        for (SelectorLoop loop : loops) {
+            if (loop == null) {
+                continue;
+            }
+            loop.selector.wakeup();
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getConnects() {
+        long sum = 0;
+        for (SelectorLoop loop : loops) {
+            sum += loop == null ? 0 : loop.connects;
+        }
+        return sum;
+    }
+
+    public long getRefusals() {
+        long sum = 0;
+        for (SelectorLoop loop : loops) {
+            sum += loop == null ? 0 : loop.refusals;
+        }
+        return sum;
+    }
+
+    public long getBindFailures() {
+        long sum = 0;
+        for (SelectorLoop loop : loops) {
+            sum += loop == null ? 0 : loop.bindFailures;
+        }
+        return sum;
+    }
+
+    public long getOtherFailures() {
+        long sum = 0;
+        for (SelectorLoop loop : loops) {
+            sum += loop == null ? 0 : loop.otherFailures;
+        }
+        return sum;
+    }
+
+    public int getInFlight() {
+        int sum = 0;
+        for (SelectorLoop loop : loops) {
+            sum += loop == null ? 0 : loop.inFlight;
+        }
+        return sum;
+    }
+
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private Thread thread;
+        //single writer (the loop thread) each, so plain volatile increments are safe
+        private volatile long connects = 0;
+        private volatile long refusals = 0;
+        private volatile long bindFailures = 0;
+        private volatile long otherFailures = 0;
+        private volatile int inFlight = 0;
+
+        private SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    fill();
+                    selector.select(100);
+                    Set<SelectionKey> selected = selector.selectedKeys();
+                    Iterator<SelectionKey> iterator = selected.iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        complete(key);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("selector loop died");
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly((SocketChannel) key.channel());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void fill() {
+            //bounded, so immediately-completing connects cant starve select()
+            for (int attempts = 0; attempts < concurrencyPerSelector && inFlight < concurrencyPerSelector; attempts++) {
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    if (channel.connect(target)) {
+                        connects++; //loopback connects can complete immediately
+                        closeQuietly(channel);
+                        continue;
+                    }
+                    channel.register(selector, SelectionKey.OP_CONNECT);
+                    inFlight++;
+                } catch (BindException e) {
+                    bindFailures++; //ephemeral port exhaustion.
+                    closeQuietly(channel);
+                    return; //back off until something completes
+                } catch (ConnectException e) {
+                    refusals++;
+                    closeQuietly(channel);
+                } catch (IOException e) {
+                    otherFailures++;
+                    closeQuietly(channel);
+                    return;
+                }
+            }
+        }
+
+        private void complete(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                if (!channel.finishConnect()) {
+                    return; //spurious wakeup, still connecting
+                }
+                connects++;
+            } catch (ConnectException e) {
+                refusals++;
+            } catch (IOException e) {
+                otherFailures++;
+            }
+            key.cancel();
+            closeQuietly(channel);
+            inFlight--;
+        }
+
+        private void closeQuietly(SocketChannel channel) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                otherFailures++;
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package net.radai;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.dcache.xdr.OncRpcClient;
+import org.dcache.xdr.XdrTransport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a keyed pool of connected {@link OncRpcClient}s. connections are keyed by (address, protocol, port)
+ * and handed out as {@link Lease}s. a healthy lease goes back to the idle queue of its key when closed,
+ * an invalidated lease (or an idle connection found dead on borrow) is closed and evicted. idle connections are
+ * also swept in the background, every maxIdleMillis / 2, so ones nobody borrows again do not linger.
+ * @author Radai Rosenblatt
+ */
+public class OncRpcClientPool implements Closeable {
+    private final int maxIdlePerKey;
+    private final int maxTotalPerKey;
+    private final long maxIdleNanos;
+    private final ConcurrentMap<Key, KeyedPool> pools = new ConcurrentHashMap<>();
+    private final Counter created;
+    private final Counter destroyed;
+    private final Meter borrowed;
+    private final Meter evicted;
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    public OncRpcClientPool(int maxIdlePerKey, int maxTotalPerKey, long maxIdleMillis, MetricRegistry metrics) {
+        if (maxIdlePerKey < 0 || maxTotalPerKey < 1 || maxIdlePerKey > maxTotalPerKey) {
+            throw new IllegalArgumentException("bad pool bounds: maxIdle " + maxIdlePerKey + " maxTotal " + maxTotalPerKey);
+        }
+        this.maxIdlePerKey = maxIdlePerKey;
+        this.maxTotalPerKey = maxTotalPerKey;
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+        this.created = metrics.counter("pool.created");
+        this.destroyed = metrics.counter("pool.destroyed");
+        this.borrowed = metrics.meter("pool.borrowed");
+        this.evicted = metrics.meter("pool.evicted");
+        metrics.register("pool.idle", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getIdleCount();
+            }
+        });
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long periodMillis = Math.max(1, maxIdleMillis / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evictIdle();
+                } catch (Throwable t) {
+                    System.err.println("while evicting idle rpcClients");
+                    t.printStackTrace();
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * borrows a connection to the given endpoint, reusing an idle one if a live one exists. blocks if
+     * maxTotalPerKey connections to this endpoint are already leased out.
+     */
+    public Lease borrow(InetAddress address, int protocol, int port) throws IOException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("pool is closed");
+        }
+        Key key = new Key(address, protocol, port);
+        KeyedPool pool = pools.get(key);
+        if (pool == null) {
+            KeyedPool fresh = new KeyedPool(maxTotalPerKey);
+            pool = pools.putIfAbsent(key, fresh);
+            if (pool == null) {
+                pool = fresh;
+            }
+        }
+        pool.permits.acquire();
+        try {
+            Pooled pooled;
+            //LIFO - the most recently returned connection is the one most likely to still be alive
+            while ((pooled = pool.idle.pollFirst()) != null) {
+                if (isValid(pooled)) {
+                    borrowed.mark();
+                    return new Lease(pool, pooled);
+                }
+                evicted.mark();
+                destroy(pooled);
+            }
+            pooled = create(key);
+            borrowed.mark();
+            return new Lease(pool, pooled);
+        } catch (Throwable t) {
+            pool.permits.release();
+            throw t;
+        }
+    }
+
+    /**
+     * closes (and forgets) every idle connection that has been idle longer than maxIdleMillis or is no longer open.
+     * @return the number of connections evicted
+     */
+    public int evictIdle() {
+        int count = 0;
+        for (KeyedPool pool : pools.values()) {
+            for (Pooled pooled : pool.idle) {
+                if (!isValid(pooled) && pool.idle.remove(pooled)) {
+                    evicted.mark();
+                    destroy(pooled);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (KeyedPool pool : pools.values()) {
+            count += pool.idle.size();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdown();
+        for (KeyedPool pool : pools.values()) {
+            Pooled pooled;
+            while ((pooled = pool.idle.pollFirst()) != null) {
+                destroy(pooled);
+            }
+        }
+    }
+
+    private boolean isValid(Pooled pooled) {
+        return System.nanoTime() - pooled.lastUsedNanos <= maxIdleNanos && pooled.transport.isOpen();
+    }
+
+    private Pooled create(Key key) throws IOException {
+        OncRpcClient client = new OncRpcClient(key.address, key.protocol, key.port);
+        try {
+            XdrTransport transport = client.connect();
+            created.inc();
+            return new Pooled(client, transport);
+        } catch (Throwable t) {
+            try {
+                client.close();
+            } catch (Throwable t2) {
+                t.addSuppressed(t2);
+            }
+            throw t;
+        }
+    }
+
+    private void destroy(Pooled pooled) {
+        try {
+            pooled.client.close();
+        } catch (Throwable t) {
+            System.err.println("while trying to close pooled rpcClient");
+            t.printStackTrace();
+        } finally {
+            destroyed.inc();
+        }
+    }
+
+    private void giveBack(KeyedPool pool, Pooled pooled, boolean broken) {
+        try {
+            if (broken || closed || !pooled.transport.isOpen() || pool.idle.size() >= maxIdlePerKey) {
+                destroy(pooled);
+                return;
+            }
+            pooled.lastUsedNanos = System.nanoTime();
+            pool.idle.offerFirst(pooled);
+            if (closed && pool.idle.remove(pooled)) {
+                destroy(pooled); //raced with close()
+            }
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    /**
+     * a connection on loan from the pool. close() returns it (or destroys it if it was invalidated).
+     */
+    public class Lease implements AutoCloseable {
+        private final KeyedPool pool;
+        private final Pooled pooled;
+        private boolean broken = false;
+        private boolean returned = false;
+
+        private Lease(KeyedPool pool, Pooled pooled) {
+            this.pool = pool;
+            this.pooled = pooled;
+        }
+
+        public XdrTransport getTransport() {
+            return pooled.transport;
+        }
+
+        /**
+         * marks the underlying connection as unusable, so it gets destroyed instead of pooled on close()
+         */
+        public void invalidate() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            if (returned) {
+                return;
+            }
+            returned = true;
+            giveBack(pool, pooled, broken);
+        }
+    }
+
+    private static class KeyedPool {
+        private final Deque<Pooled> idle = new ConcurrentLinkedDeque<>();
+        private final Semaphore permits;
+
+        private KeyedPool(int maxTotal) {
+            this.permits = new Semaphore(maxTotal);
+        }
+    }
+
+    private static class Pooled {
+        private final OncRpcClient client;
+        private final XdrTransport transport;
+        private volatile long lastUsedNanos;
+
+        private Pooled(OncRpcClient client, XdrTransport transport) {
+            this.client = client;
+            this.transport = transport;
+            this.lastUsedNanos = System.nanoTime();
+        }
+    }
+
+    private static final class Key {
+        private final InetAddress address;
+        private final int protocol;
+        private final int port;
+
+        private Key(InetAddress address, int protocol, int port) {
+            this.address = address;
+            this.protocol = protocol;
+            this.port = port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return protocol == other.protocol && port == other.port && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * address.hashCode() + protocol) + port;
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress() + ":" + port + "/" + protocol;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package net.radai;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * an open-loop load driver: operations are started on a fixed (or linearly ramping) schedule regardless of how long
+ * earlier ones take, so a stalling server shows up as latency rather than as a quietly lower request rate.
+ * the first phase of every operation is timed from when the operation was <i>scheduled</i> to start, not from when a
+ * worker got around to it, which corrects for coordinated omission. phases (and the operation as a whole) are recorded
+ * in hdr histograms, whose p50/p99/p99.9/max (in microseconds) are registered as gauges under the given name.
+ * @author Radai Rosenblatt
+ */
+public class OpenLoopLoadGenerator {
+    public enum Phase {
+        CONNECT, CALL, CLOSE
+    }
+
+    public interface Operation {
+        /**
+         * performs one operation, calling {@link PhaseTimer#phaseDone(Phase)} as each phase completes
+         */
+        void execute(PhaseTimer timer) throws Exception;
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final Histogram[] phaseHistograms = new Histogram[Phase.values().length];
+    private final Histogram totalHistogram = new ConcurrentHistogram(3);
+    private final Meter issued;
+    private final Meter errors;
+    private volatile Throwable lastError = null;
+
+    public OpenLoopLoadGenerator(String name, int workerThreads, MetricRegistry metrics) {
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        issued = metrics.meter(name + ".issued");
+        errors = metrics.meter(name + ".errors");
+        metrics.register(name + ".backlog", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return workers.getQueue().size();
+            }
+        });
+        for (Phase phase : Phase.values()) {
+            phaseHistograms[phase.ordinal()] = new ConcurrentHistogram(3); //auto-resizing
+            registerPercentiles(metrics, name + "." + phase.name().toLowerCase(), phaseHistograms[phase.ordinal()]);
+        }
+        registerPercentiles(metrics, name + ".total", totalHistogram);
+    }
+
+    /**
+     * issues operations for the given duration, at a rate going linearly from startRate to endRate (per second),
+     * then waits for all of them to complete. a generator can only be run once
+     */
+    public void run(final Operation operation, double startRate, double endRate, long durationMillis) throws InterruptedException {
+        if (startRate <= 0 || endRate <= 0) {
+            throw new IllegalArgumentException("rates must be positive");
+        }
+        long durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long start = System.nanoTime();
+        long next = start;
+        while (next - start < durationNanos) {
+            long now;
+            while ((now = System.nanoTime()) - next < 0) {
+                LockSupport.parkNanos(next - now);
+            }
+            final long intendedStartNanos = next;
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(operation, intendedStartNanos);
+                }
+            });
+            issued.mark();
+            double progress = (next - start) / (double) durationNanos;
+            double rate = startRate + (endRate - startRate) * progress;
+            next += (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    public Histogram getHistogram(Phase phase) {
+        return phaseHistograms[phase.ordinal()];
+    }
+
+    public Histogram getTotalHistogram() {
+        return totalHistogram;
+    }
+
+    public Throwable getLastError() {
+        return lastError;
+    }
+
+    private void execute(Operation operation, long intendedStartNanos) {
+        PhaseTimer timer = new PhaseTimer(intendedStartNanos);
+        try {
+            operation.execute(timer);
+            totalHistogram.recordValue(System.nanoTime() - intendedStartNanos);
+        } catch (Throwable t) {
+            errors.mark();
+            lastError = t;
+        }
+    }
+
+    private static void registerPercentiles(MetricRegistry metrics, String prefix, Histogram histogram) {
+        metrics.register(prefix + ".p50", new PercentileGauge(histogram, 50.0));
+        metrics.register(prefix + ".p99", new PercentileGauge(histogram, 99.0));
+        metrics.register(prefix + ".p99.9", new PercentileGauge(histogram, 99.9));
+        metrics.register(prefix + ".max", new PercentileGauge(histogram, 100.0));
+    }
+
+    /**
+     * times the phases of a single operation. the first phase starts at the operation's scheduled start time,
+     * every following phase starts when the previous one was done.
+     */
+    public class PhaseTimer {
+        private long phaseStartNanos;
+
+        private PhaseTimer(long intendedStartNanos) {
+            this.phaseStartNanos = intendedStartNanos;
+        }
+
+        public void phaseDone(Phase phase) {
+            long now = System.nanoTime();
+            phaseHistograms[phase.ordinal()].recordValue(now - phaseStartNanos);
+            phaseStartNanos = now;
+        }
+    }
+
+    private static class PercentileGauge implements Gauge<Double> {
+        private final Histogram histogram;
+        private final double percentile;
+
+        private PercentileGauge(Histogram histogram, double percentile) {
+            this.histogram = histogram;
+            this.percentile = percentile;
+        }
+
+        @Override
+        public Double getValue() {
+            long nanos = percentile >= 100.0 ? histogram.getMaxValue() : histogram.getValueAtPercentile(percentile);
+            return nanos / 1000.0; //micros
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package net.radai;
+
+import org.dcache.xdr.XdrAble;
+import org.dcache.xdr.XdrTransport;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * pipelines portmap GETPORT/SET calls over a single connection: up to depth calls are outstanding at once,
+ * written back to back without waiting for replies, and replies are matched to calls by xid (by the transport's
+ * reply queue). calls are queued and written out in batches - whenever batchSize calls are queued, or on flush().
+ * every call fails with a {@link TimeoutException} if no reply arrives within the timeout of it being made - whether
+ * it was still queued by then (it is then never written out) or already written out, in which case it is also dropped
+ * from the transport's reply queue and a late reply for it is ignored.
+ * @author Radai Rosenblatt
+ */
+public class PipelinedPortmapClient {
+    private final XdrTransport transport;
+    private final int depth;
+    private final int batchSize;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService timer;
+    private final Semaphore window;
+    private final Queue<PendingCall> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedCount = new AtomicInteger(0);
+
+    public PipelinedPortmapClient(XdrTransport transport, int depth, int batchSize, long timeoutMillis, ScheduledExecutorService timer) {
+        if (depth < 1 || batchSize < 1 || batchSize > depth) {
+            throw new IllegalArgumentException("need 1 <= batchSize (" + batchSize + ") <= depth (" + depth + ")");
+        }
+        this.transport = transport;
+        this.depth = depth;
+        this.batchSize = batchSize;
+        this.timeoutMillis = timeoutMillis;
+        this.timer = timer;
+        this.window = new Semaphore(depth);
+    }
+
+    /**
+     * @return future port, 0 if the program is not registered
+     */
+    public CompletableFuture<Integer> getPort(int prog, int vers, int protocol) throws InterruptedException {
+        return enqueue(PortmapProtocol.PROC_GETPORT, new PortmapProtocol.Mapping(prog, vers, protocol, 0));
+    }
+
+    public CompletableFuture<Boolean> set(int prog, int vers, int protocol, int port) throws InterruptedException {
+        return enqueue(PortmapProtocol.PROC_SET, new PortmapProtocol.Mapping(prog, vers, protocol, port)).thenApply(new Function<Integer, Boolean>() {
+            @Override
+            public Boolean apply(Integer result) {
+                return result != 0;
+            }
+        });
+    }
+
+    /**
+     * writes out every queued call
+     */
+    public void flush() {
+        PendingCall pending;
+        while ((pending = queued.poll()) != null) {
+            queuedCount.decrementAndGet();
+            send(pending);
+        }
+    }
+
+    /**
+     * flushes, then blocks until every outstanding call has completed (or timed out)
+     */
+    public void drain() throws InterruptedException {
+        flush();
+        window.acquire(depth);
+        window.release(depth);
+    }
+
+    private CompletableFuture<Integer> enqueue(int procedure, XdrAble args) throws InterruptedException {
+        if (!window.tryAcquire()) {
+            flush(); //the window may be full of calls that were never written out
+            window.acquire();
+        }
+        final PendingCall pending = new PendingCall(procedure, args, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        //fails the call if it is still queued by its deadline. once written out it times out in send() instead
+        final ScheduledFuture<?> queuedTimeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (queued.remove(pending)) {
+                    queuedCount.decrementAndGet();
+                    pending.future.completeExceptionally(new TimeoutException("not written out within " + timeoutMillis + " ms"));
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        pending.future.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer result, Throwable error) {
+                queuedTimeout.cancel(false);
+                window.release();
+            }
+        });
+        queued.add(pending);
+        if (queuedCount.incrementAndGet() >= batchSize) {
+            flush();
+        }
+        return pending.future;
+    }
+
+    private void send(final PendingCall pending) {
+        //times out in PortmapProtocol, which also takes the call out of the reply queue. whatever time the call spent
+        //queued counts against its timeout
+        long remainingMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(pending.deadlineNanos - System.nanoTime()));
+        PortmapProtocol.callForInt(transport, pending.procedure, pending.args, remainingMillis, timer).whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer result, Throwable error) {
+                if (error != null) {
+                    pending.future.completeExceptionally(error);
+                } else {
+                    pending.future.complete(result);
+                }
+            }
+        });
+    }
+
+    private static class PendingCall {
+        private final int procedure;
+        private final XdrAble args;
+        private final long deadlineNanos;
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        private PendingCall(int procedure, XdrAble args, long deadlineNanos) {
+            this.procedure = procedure;
+            this.args = args;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package net.radai;
+
+import org.dcache.xdr.XdrTransport;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * fans portmap GETPORT/DUMP queries out to many rpcbind endpoints at once, on top of a {@link SharedRpcClientFactory}.
+ * at most maxInFlight queries are outstanding overall and at most maxInFlightPerHost against any single host
+ * (by address, so several rpcbinds on different ports of one host share its limit). queries beyond either limit wait
+ * in line, nobody blocks - a query is started whenever another one completes.
+ * <br>
+ * results are streamed: the listener hears about every endpoint as soon as it answers (or fails, or does not answer
+ * within timeoutMillis - a {@link TimeoutException}), on whatever thread completed the query. the returned future
+ * completes once every endpoint has been heard about.
+ * @author Radai Rosenblatt
+ */
+public class PortmapDiscovery {
+    private final SharedRpcClientFactory clientFactory;
+    private final int maxInFlight;
+    private final int maxInFlightPerHost;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService timer;
+    //all guarded by the queue
+    private final Queue<Query<?>> waiting = new ArrayDeque<>();
+    private final Map<InetAddress, Integer> inFlightPerHost = new HashMap<>();
+    private int inFlight = 0;
+    private int peakInFlight = 0;
+    private int peakInFlightPerHost = 0;
+
+    public PortmapDiscovery(SharedRpcClientFactory clientFactory, int maxInFlight, int maxInFlightPerHost, long timeoutMillis, ScheduledExecutorService timer) {
+        if (maxInFlightPerHost < 1 || maxInFlight < maxInFlightPerHost) {
+            throw new IllegalArgumentException("need 1 <= maxInFlightPerHost (" + maxInFlightPerHost + ") <= maxInFlight (" + maxInFlight + ")");
+        }
+        this.clientFactory = clientFactory;
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerHost = maxInFlightPerHost;
+        this.timeoutMillis = timeoutMillis;
+        this.timer = timer;
+    }
+
+    /**
+     * called as endpoints answer. must not block - it runs on transport threads
+     */
+    public interface Listener<T> {
+        void onResult(InetSocketAddress rpcbind, T result);
+        void onFailure(InetSocketAddress rpcbind, Throwable cause);
+    }
+
+    /**
+     * asks every endpoint for the port of the given program. the listener gets 0 from endpoints it is not registered at
+     */
+    public CompletableFuture<Void> getPort(Collection<InetSocketAddress> rpcbinds, final int prog, final int vers, final int protocol, Listener<Integer> listener) {
+        return fanOut(rpcbinds, new Function<XdrTransport, CompletableFuture<Integer>>() {
+            @Override
+            public CompletableFuture<Integer> apply(XdrTransport transport) {
+                return PortmapProtocol.callForInt(transport, PortmapProtocol.PROC_GETPORT, new PortmapProtocol.Mapping(prog, vers, protocol, 0), timeoutMillis, timer);
+            }
+        }, listener);
+    }
+
+    /**
+     * asks every endpoint for everything registered with it
+     */
+    public CompletableFuture<Void> dump(Collection<InetSocketAddress> rpcbinds, Listener<List<PortmapProtocol.Mapping>> listener) {
+        return fanOut(rpcbinds, new Function<XdrTransport, CompletableFuture<List<PortmapProtocol.Mapping>>>() {
+            @Override
+            public CompletableFuture<List<PortmapProtocol.Mapping>> apply(XdrTransport transport) {
+                return PortmapProtocol.dump(transport, timeoutMillis, timer);
+            }
+        }, listener);
+    }
+
+    public int getInFlight() {
+        synchronized (waiting) {
+            return inFlight;
+        }
+    }
+
+    public int getWaiting() {
+        synchronized (waiting) {
+            return waiting.size();
+        }
+    }
+
+    /**
+     * @return the most queries ever outstanding at once, overall
+     */
+    public int getPeakInFlight() {
+        synchronized (waiting) {
+            return peakInFlight;
+        }
+    }
+
+    /**
+     * @return the most queries ever outstanding at once against a single host
+     */
+    public int getPeakInFlightPerHost() {
+        synchronized (waiting) {
+            return peakInFlightPerHost;
+        }
+    }
+
+    private <T> CompletableFuture<Void> fanOut(Collection<InetSocketAddress> rpcbinds, Function<XdrTransport, CompletableFuture<T>> call, Listener<T> listener) {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        if (rpcbinds.isEmpty()) {
+            done.complete(null);
+            return done;
+        }
+        AtomicInteger remaining = new AtomicInteger(rpcbinds.size());
+        synchronized (waiting) {
+            for (InetSocketAddress rpcbind : rpcbinds) {
+                waiting.add(new Query<>(rpcbind, call, listener, remaining, done));
+            }
+        }
+        pump();
+        return done;
+    }
+
+    /**
+     * starts every waiting query there is room for, in line order, skipping over ones whose host is at its limit
+     */
+    private void pump() {
+        List<Query<?>> toStart = new ArrayList<>();
+        synchronized (waiting) {
+            Iterator<Query<?>> iterator = waiting.iterator();
+            while (inFlight < maxInFlight && iterator.hasNext()) {
+                Query<?> query = iterator.next();
+                InetAddress host = query.rpcbind.getAddress();
+                Integer hostInFlight = inFlightPerHost.get(host);
+                int count = hostInFlight == null ? 0 : hostInFlight;
+                if (count >= maxInFlightPerHost) {
+                    continue;
+                }
+                iterator.remove();
+                inFlightPerHost.put(host, count + 1);
+                inFlight++;
+                peakInFlight = Math.max(peakInFlight, inFlight);
+                peakInFlightPerHost = Math.max(peakInFlightPerHost, count + 1);
+                toStart.add(query);
+            }
+        }
+        for (Query<?> query : toStart) { //outside the lock, connects may complete inline
+            query.start();
+        }
+    }
+
+    private void release(InetSocketAddress rpcbind) {
+        synchronized (waiting) {
+            InetAddress host = rpcbind.getAddress();
+            int count = inFlightPerHost.get(host) - 1;
+            if (count == 0) {
+                inFlightPerHost.remove(host);
+            } else {
+                inFlightPerHost.put(host, count);
+            }
+            inFlight--;
+        }
+        pump();
+    }
+
+    private class Query<T> {
+        private final InetSocketAddress rpcbind;
+        private final Function<XdrTransport, CompletableFuture<T>> call;
+        private final Listener<T> listener;
+        private final AtomicInteger remaining; //shared by every query of a fan-out
+        private final CompletableFuture<Void> done;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private Query(InetSocketAddress rpcbind, Function<XdrTransport, CompletableFuture<T>> call, Listener<T> listener, AtomicInteger remaining, CompletableFuture<Void> done) {
+            this.rpcbind = rpcbind;
+            this.call = call;
+            this.listener = listener;
+            this.remaining = remaining;
+            this.done = done;
+        }
+
+        private void start() {
+            final SharedRpcClientFactory.Client client;
+            try {
+                client = clientFactory.newClient(rpcbind);
+            } catch (Throwable t) {
+                finish(null, t);
+                return;
+            }
+            final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    result.completeExceptionally(new TimeoutException("no answer from " + rpcbind + " within " + timeoutMillis + " ms"));
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            //whichever completes first - the call or the timeout - wins, the loser is ignored
+            result.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T value, Throwable error) {
+                    timeout.cancel(false);
+                    client.closeAsync(); //also fails a connect still in progress
+                    finish(value, error);
+                }
+            });
+            //the call times out on its own too (no later than the query does, it starts later), which takes it out
+            //of the reply queue - closing the client alone would leave its handler there
+            client.connectAsync().thenCompose(call).whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T value, Throwable error) {
+                    if (error != null) {
+                        result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                    } else {
+                        result.complete(value);
+                    }
+                }
+            });
+        }
+
+        private void finish(T value, Throwable error) {
+            try {
+                if (error != null) {
+                    listener.onFailure(rpcbind, error);
+                } else {
+                    listener.onResult(rpcbind, value);
+                }
+            } catch (Throwable t) {
+                System.err.println("listener failed on " + rpcbind);
+                t.printStackTrace();
+            }
+            release(rpcbind);
+            if (remaining.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+}
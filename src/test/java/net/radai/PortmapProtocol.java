@@ -0,0 +1,284 @@
+package net.radai;
+
+import org.dcache.xdr.OncRpcException;
+import org.dcache.xdr.ReplyQueue;
+import org.dcache.xdr.RpcAuth;
+import org.dcache.xdr.RpcAuthTypeNone;
+import org.dcache.xdr.RpcCall;
+import org.dcache.xdr.RpcReply;
+import org.dcache.xdr.Xdr;
+import org.dcache.xdr.XdrAble;
+import org.dcache.xdr.XdrDecodingStream;
+import org.dcache.xdr.XdrEncodingStream;
+import org.dcache.xdr.XdrInt;
+import org.dcache.xdr.XdrTransport;
+import org.dcache.xdr.XdrVoid;
+import org.glassfish.grizzly.Buffer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * portmap v2 (rfc 1833) constants and argument types, for clients that talk to rpcbind directly
+ * instead of through {@link org.dcache.xdr.portmap.GenericPortmapClient}
+ * @author Radai Rosenblatt
+ */
+public class PortmapProtocol {
+    public static final int PROGRAM = 100000;
+    public static final int VERSION = 2;
+
+    public static final int PROC_NULL = 0;
+    public static final int PROC_SET = 1;
+    public static final int PROC_GETPORT = 3;
+    public static final int PROC_DUMP = 4;
+
+    public static final int IPPROTO_TCP = 6;
+    public static final int IPPROTO_UDP = 17;
+
+    private static final RpcAuth AUTH_NONE = new RpcAuthTypeNone();
+
+    /**
+     * sends a portmap call whose result is a single int (port, bool) without blocking.
+     * the future completes on whatever thread the reply is processed on
+     */
+    public static CompletableFuture<Integer> callForInt(XdrTransport transport, int procedure, XdrAble args) {
+        return callForInt(transport, procedure, args, 0, null);
+    }
+
+    /**
+     * callForInt(), failing with a {@link TimeoutException} if no reply arrives within timeoutMillis
+     */
+    public static CompletableFuture<Integer> callForInt(XdrTransport transport, int procedure, XdrAble args, long timeoutMillis, ScheduledExecutorService timer) {
+        return call(transport, procedure, args, new XdrInt(), timeoutMillis, timer).thenApply(new Function<XdrInt, Integer>() {
+            @Override
+            public Integer apply(XdrInt result) {
+                return result.intValue();
+            }
+        });
+    }
+
+    /**
+     * DUMP without blocking
+     */
+    public static CompletableFuture<List<Mapping>> dump(XdrTransport transport) {
+        return dump(transport, 0, null);
+    }
+
+    /**
+     * dump(), failing with a {@link TimeoutException} if no reply arrives within timeoutMillis
+     */
+    public static CompletableFuture<List<Mapping>> dump(XdrTransport transport, long timeoutMillis, ScheduledExecutorService timer) {
+        return call(transport, PROC_DUMP, XdrVoid.XDR_VOID, new MappingList(), timeoutMillis, timer).thenApply(new Function<MappingList, List<Mapping>>() {
+            @Override
+            public List<Mapping> apply(MappingList result) {
+                return result.getMappings();
+            }
+        });
+    }
+
+    /**
+     * sends a portmap call without blocking, decoding the reply into result
+     */
+    public static <T extends XdrAble> CompletableFuture<T> call(XdrTransport transport, int procedure, XdrAble args, final T result) {
+        return call(transport, procedure, args, result, 0, null);
+    }
+
+    /**
+     * sends a portmap call without blocking, decoding the reply into result. if no reply arrives within timeoutMillis
+     * the call fails with a {@link TimeoutException} and its xid is taken out of the transport's reply queue, so the
+     * handler does not sit there forever (and a late reply finds nothing to run)
+     * @param timer null for no timeout
+     */
+    public static <T extends XdrAble> CompletableFuture<T> call(XdrTransport transport, int procedure, XdrAble args, final T result,
+                                                                final long timeoutMillis, ScheduledExecutorService timer) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final XidRecordingTransport recording = timer != null ? new XidRecordingTransport(transport) : null;
+        try {
+            RpcCall call = new RpcCall(PROGRAM, VERSION, AUTH_NONE, recording != null ? recording : transport);
+            call.call(procedure, args, new CompletionHandler<RpcReply, XdrTransport>() {
+                @Override
+                public void completed(RpcReply reply, XdrTransport attachment) {
+                    try {
+                        reply.getReplyResult(result);
+                        future.complete(result);
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable t, XdrTransport attachment) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+        if (recording != null && !future.isDone()) {
+            final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.completeExceptionally(new TimeoutException("no reply within " + timeoutMillis + " millis"))) {
+                        recording.forget();
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            future.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T value, Throwable error) {
+                    timeout.cancel(false);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * struct mapping { unsigned int prog; unsigned int vers; unsigned int prot; unsigned int port; }
+     */
+    public static class Mapping implements XdrAble {
+        private int prog;
+        private int vers;
+        private int prot;
+        private int port;
+
+        public Mapping() {
+        }
+
+        public Mapping(int prog, int vers, int prot, int port) {
+            this.prog = prog;
+            this.vers = vers;
+            this.prot = prot;
+            this.port = port;
+        }
+
+        public int getProg() {
+            return prog;
+        }
+
+        public int getVers() {
+            return vers;
+        }
+
+        public int getProt() {
+            return prot;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public void xdrDecode(XdrDecodingStream xdr) throws OncRpcException, IOException {
+            prog = xdr.xdrDecodeInt();
+            vers = xdr.xdrDecodeInt();
+            prot = xdr.xdrDecodeInt();
+            port = xdr.xdrDecodeInt();
+        }
+
+        @Override
+        public void xdrEncode(XdrEncodingStream xdr) throws OncRpcException, IOException {
+            xdr.xdrEncodeInt(prog);
+            xdr.xdrEncodeInt(vers);
+            xdr.xdrEncodeInt(prot);
+            xdr.xdrEncodeInt(port);
+        }
+    }
+
+    /**
+     * pmaplist, as returned by DUMP: an xdr optional-data linked list of mappings
+     */
+    public static class MappingList implements XdrAble {
+        private final List<Mapping> mappings = new ArrayList<>();
+
+        public List<Mapping> getMappings() {
+            return mappings;
+        }
+
+        @Override
+        public void xdrDecode(XdrDecodingStream xdr) throws OncRpcException, IOException {
+            mappings.clear();
+            while (xdr.xdrDecodeBoolean()) { //"value follows"
+                Mapping mapping = new Mapping();
+                mapping.xdrDecode(xdr);
+                mappings.add(mapping);
+            }
+        }
+
+        @Override
+        public void xdrEncode(XdrEncodingStream xdr) throws OncRpcException, IOException {
+            for (Mapping mapping : mappings) {
+                xdr.xdrEncodeBoolean(true);
+                mapping.xdrEncode(xdr);
+            }
+            xdr.xdrEncodeBoolean(false);
+        }
+    }
+
+    /**
+     * passes everything through to the real transport, noting the xid of the call sent over it - RpcCall registers
+     * the call's handler under that xid, and does not tell anyone what it was
+     */
+    private static class XidRecordingTransport implements XdrTransport {
+        private final XdrTransport transport;
+        private volatile boolean sent = false;
+        private volatile int xid;
+
+        private XidRecordingTransport(XdrTransport transport) {
+            this.transport = transport;
+        }
+
+        /**
+         * takes the call's handler out of the reply queue
+         */
+        private void forget() {
+            if (sent) {
+                transport.getReplyQueue().get(xid); //removes it
+            }
+        }
+
+        @Override
+        public void send(Xdr xdr, SocketAddress destination, CompletionHandler<Integer, ? super SocketAddress> handler) {
+            Buffer buffer = xdr.asBuffer();
+            xid = buffer.getInt(buffer.position()); //the first word of any rpc message
+            sent = true;
+            transport.send(xdr, destination, handler);
+        }
+
+        @Override
+        public ReplyQueue getReplyQueue() {
+            return transport.getReplyQueue();
+        }
+
+        @Override
+        public InetSocketAddress getLocalSocketAddress() {
+            return transport.getLocalSocketAddress();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteSocketAddress() {
+            return transport.getRemoteSocketAddress();
+        }
+
+        @Override
+        public XdrTransport getPeerTransport() {
+            return transport.getPeerTransport();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return transport.isOpen();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package net.radai;
+
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * gauges for the resources that connect/close churn actually runs out of: open file descriptors, epoll instances
+ * (one per selector), live threads (in total and by name prefix), tcp sockets to/from a given port by state
+ * (TIME_WAIT being the interesting one) and heap retained after gc. all but the heap gauge are read from /proc
+ * (linux only, -1 elsewhere).
+ * <br>
+ * each group of gauges shares one snapshot that is taken at most once per sampling interval, no matter how many
+ * gauges or reporters read it, so sampling is cheap enough to leave on during benchmarks.
+ * @author Radai Rosenblatt
+ */
+public class ProcessResourceGauges {
+    private static final String EPOLL_LINK = "anon_inode:[eventpoll]";
+    private static final String[] TCP_STATES = { //as numbered in include/net/tcp_states.h
+            null, "ESTABLISHED", "SYN_SENT", "SYN_RECV", "FIN_WAIT1", "FIN_WAIT2", "TIME_WAIT",
+            "CLOSE", "CLOSE_WAIT", "LAST_ACK", "LISTEN", "CLOSING"
+    };
+
+    private final int tcpPort;
+    private final List<String> threadPrefixes;
+
+    /**
+     * samples once a second, grouping grizzly threads into selector and worker threads
+     */
+    public ProcessResourceGauges(MetricRegistry metrics, int tcpPort) {
+        this(metrics, tcpPort, grizzlyThreadPrefixes(), TimeUnit.SECONDS.toMillis(1));
+    }
+
+    /**
+     * @param tcpPort count sockets whose local or remote port is this port
+     * @param threadPrefixes gauge name to thread name prefix
+     */
+    public ProcessResourceGauges(MetricRegistry metrics, int tcpPort, Map<String, String> threadPrefixes, long sampleIntervalMillis) {
+        this.tcpPort = tcpPort;
+        this.threadPrefixes = new ArrayList<>(threadPrefixes.values());
+
+        final CachedGauge<int[]> fds = new CachedGauge<int[]>(sampleIntervalMillis, TimeUnit.MILLISECONDS) {
+            @Override
+            protected int[] loadValue() {
+                return sampleFds();
+            }
+        };
+        metrics.register("process.openFds", element(fds, 0));
+        metrics.register("process.epollInstances", element(fds, 1));
+
+        final CachedGauge<int[]> threads = new CachedGauge<int[]>(sampleIntervalMillis, TimeUnit.MILLISECONDS) {
+            @Override
+            protected int[] loadValue() {
+                return sampleThreads();
+            }
+        };
+        metrics.register("process.threads", element(threads, 0));
+        int i = 1;
+        for (String name : threadPrefixes.keySet()) {
+            metrics.register("process.threads." + name, element(threads, i++));
+        }
+
+        metrics.register("process.heapAfterGc", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return heapUsedAfterLastGc();
+            }
+        });
+
+        final CachedGauge<int[]> sockets = new CachedGauge<int[]>(sampleIntervalMillis, TimeUnit.MILLISECONDS) {
+            @Override
+            protected int[] loadValue() {
+                return sampleTcpStates();
+            }
+        };
+        for (int state = 1; state < TCP_STATES.length; state++) {
+            metrics.register("tcp." + tcpPort + "." + TCP_STATES[state], element(sockets, state));
+        }
+    }
+
+    public static Map<String, String> grizzlyThreadPrefixes() {
+        Map<String, String> prefixes = new LinkedHashMap<>();
+        prefixes.put("selector", "Grizzly-kernel");
+        prefixes.put("worker", "Grizzly-worker");
+        return prefixes;
+    }
+
+    private static Gauge<Integer> element(final CachedGauge<int[]> snapshot, final int index) {
+        return new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return snapshot.getValue()[index];
+            }
+        };
+    }
+
+    /**
+     * @return heap bytes still in use right after the most recent collection of each heap pool. unlike plain heap
+     * usage this does not go up and down with allocation, so it only grows if something is retaining memory
+     */
+    private static long heapUsedAfterLastGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (afterGc != null) {
+                used += afterGc.getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return {open fds, epoll instances}
+     */
+    private int[] sampleFds() {
+        int[] counts = {0, 0};
+        Path fdDir = Paths.get("/proc/self/fd");
+        String[] fds = fdDir.toFile().list();
+        if (fds == null) {
+            return new int[] {-1, -1};
+        }
+        for (String fd : fds) {
+            counts[0]++;
+            try {
+                if (EPOLL_LINK.equals(Files.readSymbolicLink(fdDir.resolve(fd)).toString())) {
+                    counts[1]++;
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                //closed since we listed the directory (or is the fd of the listing itself)
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return {live threads, then live threads per prefix}
+     */
+    private int[] sampleThreads() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        Thread[] threads = new Thread[root.activeCount() * 2]; //room for threads started since
+        int count = root.enumerate(threads, true);
+        int[] counts = new int[1 + threadPrefixes.size()];
+        counts[0] = count;
+        for (int i = 0; i < count; i++) {
+            String name = threads[i].getName();
+            for (int j = 0; j < threadPrefixes.size(); j++) {
+                if (name.startsWith(threadPrefixes.get(j))) {
+                    counts[j + 1]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return socket count per tcp state (indexed like TCP_STATES) of every socket on the host to/from tcpPort
+     */
+    private int[] sampleTcpStates() {
+        int[] counts = new int[TCP_STATES.length];
+        boolean found = readTcpStates("/proc/net/tcp", counts);
+        found |= readTcpStates("/proc/net/tcp6", counts);
+        if (!found) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = -1;
+            }
+        }
+        return counts;
+    }
+
+    private boolean readTcpStates(String path, int[] counts) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            reader.readLine(); //header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                //"  sl  local_address rem_address   st ...", addresses being "<hex ip>:<hex port>"
+                String[] fields = line.trim().split("\\s+", 5);
+                if (fields.length < 4) {
+                    continue;
+                }
+                if (port(fields[1]) != tcpPort && port(fields[2]) != tcpPort) {
+                    continue;
+                }
+                int state = Integer.parseInt(fields[3], 16);
+                if (state > 0 && state < counts.length) {
+                    counts[state]++;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false; //not linux, or no ipv6
+        }
+    }
+
+    private static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1), 16);
+    }
+}
@@ -0,0 +1,249 @@
+package net.radai;
+
+import org.dcache.xdr.GrizzlyXdrTransport;
+import org.dcache.xdr.ReplyQueue;
+import org.dcache.xdr.RpcMessageParserTCP;
+import org.dcache.xdr.RpcProtocolFilter;
+import org.dcache.xdr.XdrTransport;
+import org.glassfish.grizzly.Closeable;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.IOStrategy;
+import org.glassfish.grizzly.Processor;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * hands out lightweight rpc clients that all share one grizzly transport (selector runners, kernel and worker
+ * pools), so creating a client costs a socket and not a thread pool.
+ * <br>
+ * every client has a reply queue (and so a filter chain) of its own though: oncrpc4j draws each call's xid at random,
+ * so calls on different connections can share an xid, and in a shared queue the second would take over the first's
+ * handler. a reply queue is just a map, and replies to a connection's calls only ever come in on that connection.
+ * the shared transport is reference counted - the factory and every open client hold a reference,
+ * and it is shut down when the last of them is closed.
+ * <br>
+ * {@link org.dcache.xdr.OncRpcClient} always builds a private transport, so clients here set up the same
+ * filter chain themselves and wrap their connections in a {@link GrizzlyXdrTransport}.
+ * @author Radai Rosenblatt
+ */
+public class SharedRpcClientFactory implements java.io.Closeable {
+    private final SharedTcpTransport transport;
+    private static final long LOCAL_ADDRESS_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2); //longer than TIME_WAIT
+    private final AtomicInteger refCount = new AtomicInteger(1); //the factory's own reference
+
+    public SharedRpcClientFactory(IOStrategy ioStrategy) throws IOException {
+        this(ioStrategy, 0, 0);
+    }
+
+    public SharedRpcClientFactory(IOStrategy ioStrategy, int selectorRunners, int workerThreads) throws IOException {
+        transport = new SharedTcpTransport(ioStrategy, selectorRunners, workerThreads, null); //every client brings its own
+    }
+
+    public Client newClient(InetSocketAddress address) {
+        return newClient(address, null);
+    }
+
+    /**
+     * @param localAddresses where to take the client's local address from, null to let the kernel pick one
+     */
+    public Client newClient(InetSocketAddress address, LocalAddressAllocator localAddresses) {
+        retain();
+        return new Client(address, localAddresses);
+    }
+
+    /**
+     * @return the number of outstanding references (open clients + the factory itself, if not yet closed)
+     */
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+    }
+
+    private void retain() {
+        while (true) {
+            int count = refCount.get();
+            if (count == 0) {
+                throw new IllegalStateException("shared transport already shut down");
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return;
+            }
+        }
+    }
+
+    private void release() throws IOException {
+        if (refCount.decrementAndGet() == 0) {
+            transport.close();
+        }
+    }
+
+    /**
+     * like release(), but doesnt wait for the transport to shut down (so it can be called from grizzly threads)
+     */
+    private void releaseAsync() {
+        if (refCount.decrementAndGet() == 0) {
+            transport.shutdown();
+        }
+    }
+
+    /**
+     * a client for a single remote address. close() closes only this client's connection (and drops its
+     * reference to the shared transport).
+     */
+    public class Client implements AutoCloseable {
+        private final InetSocketAddress address;
+        private final LocalAddressAllocator localAddresses;
+        private final ReplyQueue replyQueue = new ReplyQueue();
+        private final Processor filterChain;
+        private volatile InetSocketAddress localAddress;
+        private volatile Connection connection;
+        private volatile boolean closed = false;
+
+        private Client(InetSocketAddress address, LocalAddressAllocator localAddresses) {
+            this.address = address;
+            this.localAddresses = localAddresses;
+            FilterChainBuilder filterChain = FilterChainBuilder.stateless();
+            filterChain.add(new TransportFilter());
+            filterChain.add(new RpcMessageParserTCP());
+            filterChain.add(new RpcProtocolFilter(replyQueue));
+            this.filterChain = filterChain.build();
+        }
+
+        @SuppressWarnings("unchecked")
+        public XdrTransport connect() throws IOException, InterruptedException {
+            if (closed || connection != null) {
+                throw new IllegalStateException("client already " + (closed ? "closed" : "connected"));
+            }
+            if (localAddresses != null) {
+                localAddress = localAddresses.acquire(LOCAL_ADDRESS_TIMEOUT_MILLIS);
+            }
+            try {
+                connection = transport.connect(address, localAddress, filterChain);
+            } catch (Throwable t) {
+                releaseLocalAddress(false);
+                throw t;
+            }
+            return new GrizzlyXdrTransport(connection, replyQueue);
+        }
+
+        /**
+         * connects without blocking the calling thread. the future completes on a grizzly thread
+         */
+        public CompletableFuture<XdrTransport> connectAsync() {
+            if (closed || connection != null) {
+                throw new IllegalStateException("client already " + (closed ? "closed" : "connected"));
+            }
+            final CompletableFuture<XdrTransport> future = new CompletableFuture<>();
+            if (localAddresses != null) {
+                try {
+                    localAddress = localAddresses.acquire(0); //dont block
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                    return future;
+                }
+            }
+            transport.connect(address, localAddress, filterChain, new EmptyCompletionHandler<Connection>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void completed(Connection result) {
+                    connection = result;
+                    if (closed) {
+                        //closeAsync() got here first and did not see the connection (or did, closing twice is fine)
+                        result.close();
+                        releaseLocalAddress(true);
+                        future.completeExceptionally(new IOException("client closed while connecting"));
+                        return;
+                    }
+                    future.complete(new GrizzlyXdrTransport(result, replyQueue));
+                }
+
+                @Override
+                public void failed(Throwable throwable) {
+                    releaseLocalAddress(false);
+                    future.completeExceptionally(throwable);
+                }
+
+                @Override
+                public void cancelled() {
+                    releaseLocalAddress(false);
+                    future.cancel(false);
+                }
+            });
+            return future;
+        }
+
+        /**
+         * closes without blocking the calling thread. the future completes once the connection is closed
+         */
+        public CompletableFuture<Void> closeAsync() {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            if (closed) {
+                future.complete(null);
+                return future;
+            }
+            closed = true;
+            if (connection == null) {
+                releaseAsync();
+                future.complete(null);
+                return future;
+            }
+            connection.close().addCompletionHandler(new EmptyCompletionHandler<Closeable>() {
+                @Override
+                public void completed(Closeable result) {
+                    releaseLocalAddress(true);
+                    releaseAsync();
+                    future.complete(null);
+                }
+
+                @Override
+                public void failed(Throwable throwable) {
+                    releaseLocalAddress(true);
+                    releaseAsync();
+                    future.completeExceptionally(throwable);
+                }
+            });
+            return future;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (connection != null) {
+                    connection.close().get(); //block
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } finally {
+                releaseLocalAddress(true); //no-op if never connected, the failed connect gave it back
+                release();
+            }
+        }
+
+        private synchronized void releaseLocalAddress(boolean established) {
+            InetSocketAddress local = localAddress;
+            if (local != null) {
+                localAddress = null;
+                localAddresses.release(local, established);
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package net.radai;
+
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.GrizzlyFuture;
+import org.glassfish.grizzly.IOStrategy;
+import org.glassfish.grizzly.Processor;
+import org.glassfish.grizzly.Transport;
+import org.glassfish.grizzly.nio.transport.TCPNIOConnectorHandler;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.strategies.LeaderFollowerNIOStrategy;
+import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
+import org.glassfish.grizzly.strategies.SimpleDynamicNIOStrategy;
+import org.glassfish.grizzly.strategies.WorkerThreadIOStrategy;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * a single long-lived {@link TCPNIOTransport} (selector runners, kernel and worker pools) that many
+ * connections are opened on, as opposed to building, starting and shutting down a transport per connection.
+ * @author Radai Rosenblatt
+ */
+public class SharedTcpTransport implements Closeable {
+    private final TCPNIOTransport transport;
+
+    public SharedTcpTransport(IOStrategy ioStrategy) throws IOException {
+        this(ioStrategy, 0, 0, null);
+    }
+
+    /**
+     * @param selectorRunners number of selector runners, 0 for the grizzly default
+     * @param workerThreads worker pool size, 0 for whatever the io strategy defaults to
+     * @param processor processor (filter chain) for the connections, null for none
+     */
+    public SharedTcpTransport(IOStrategy ioStrategy, int selectorRunners, int workerThreads, Processor processor) throws IOException {
+        TCPNIOTransportBuilder builder = TCPNIOTransportBuilder.newInstance().setIOStrategy(ioStrategy);
+        if (selectorRunners > 0) {
+            builder.setSelectorRunnersCount(selectorRunners);
+        }
+        if (workerThreads > 0) {
+            builder.setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig().setCorePoolSize(workerThreads).setMaxPoolSize(workerThreads));
+        }
+        transport = builder.build();
+        if (processor != null) {
+            transport.setProcessor(processor);
+        }
+        transport.start();
+    }
+
+    /**
+     * connects and blocks until the connection is established (or fails)
+     */
+    public Connection connect(SocketAddress address) throws IOException, InterruptedException {
+        return connect(address, (SocketAddress) null);
+    }
+
+    /**
+     * connects from the given local address (null to let the kernel pick one) and blocks until the connection
+     * is established (or fails)
+     */
+    public Connection connect(SocketAddress address, SocketAddress localAddress) throws IOException, InterruptedException {
+        try {
+            return (localAddress == null ? transport.connect(address) : transport.connect(address, localAddress)).get(); //block
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * connects and blocks until the connection is established (or fails), reporting the outcome instead of throwing.
+     * the attempt is reused across calls by the same thread, so a connect costs no future, no ExecutionException
+     * and no rethrow on our side
+     * @return the outcome, the connection (or failure) being available from the attempt
+     */
+    public ConnectOutcome connect(SocketAddress address, SocketAddress localAddress, ConnectAttempt attempt) throws InterruptedException {
+        attempt.reset();
+        connect(address, localAddress, attempt);
+        return attempt.await();
+    }
+
+    /**
+     * connects from the given local address (null to let the kernel pick one), with a processor (filter chain) of
+     * its own instead of the transport's, and blocks until the connection is established (or fails)
+     */
+    public Connection connect(SocketAddress address, SocketAddress localAddress, Processor processor) throws IOException, InterruptedException {
+        try {
+            return connectorFor(processor).connect(address, localAddress).get(); //block
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * like {@link #connect(SocketAddress, SocketAddress, Processor)}, without blocking
+     */
+    public void connect(SocketAddress address, SocketAddress localAddress, Processor processor, CompletionHandler<Connection> handler) {
+        connectorFor(processor).connect(address, localAddress, handler);
+    }
+
+    public void connect(SocketAddress address, CompletionHandler<Connection> handler) {
+        transport.connect(address, handler);
+    }
+
+    public void connect(SocketAddress address, SocketAddress localAddress, CompletionHandler<Connection> handler) {
+        if (localAddress == null) {
+            transport.connect(address, handler);
+        } else {
+            transport.connect(address, localAddress, handler);
+        }
+    }
+
+    /**
+     * the processor is set on the connection before it is registered with a selector, so it sees every event
+     */
+    private TCPNIOConnectorHandler connectorFor(Processor processor) {
+        return TCPNIOConnectorHandler.builder(transport).processor(processor).build();
+    }
+
+    public TCPNIOTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * starts shutting the transport down without waiting for it. safe to call from a selector or worker thread
+     */
+    public GrizzlyFuture<Transport> shutdown() {
+        return transport.shutdown();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            transport.shutdown().get(); //block
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @param name one of "same", "worker", "leader" or "dynamic"
+     */
+    public static IOStrategy ioStrategyFor(String name) {
+        switch (name) {
+            case "same":
+                return SameThreadIOStrategy.getInstance();
+            case "worker":
+                return WorkerThreadIOStrategy.getInstance();
+            case "leader":
+                return LeaderFollowerNIOStrategy.getInstance();
+            case "dynamic":
+                return SimpleDynamicNIOStrategy.getInstance();
+            default:
+                throw new IllegalArgumentException("unknown io strategy " + name);
+        }
+    }
+
+    /**
+     * a reusable connect completion handler that a single thread can block on
+     */
+    public static class ConnectAttempt implements CompletionHandler<Connection> {
+        private ConnectOutcome outcome;
+        private Connection connection;
+        private Throwable failure;
+
+        public synchronized Connection getConnection() {
+            return connection;
+        }
+
+        public synchronized Throwable getFailure() {
+            return failure;
+        }
+
+        @Override
+        public void cancelled() {
+            complete(ConnectOutcome.OTHER, null, null);
+        }
+
+        @Override
+        public void failed(Throwable throwable) {
+            complete(ConnectOutcome.classify(throwable), null, throwable);
+        }
+
+        @Override
+        public void completed(Connection result) {
+            complete(ConnectOutcome.OK, result, null);
+        }
+
+        @Override
+        public void updated(Connection result) {
+        }
+
+        private synchronized void reset() {
+            outcome = null;
+            connection = null;
+            failure = null;
+        }
+
+        private synchronized ConnectOutcome await() throws InterruptedException {
+            while (outcome == null) {
+                wait();
+            }
+            return outcome;
+        }
+
+        private synchronized void complete(ConnectOutcome outcome, Connection connection, Throwable failure) {
+            this.outcome = outcome;
+            this.connection = connection;
+            this.failure = failure;
+            notifyAll();
+        }
+    }
+}
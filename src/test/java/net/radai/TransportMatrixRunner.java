@@ -0,0 +1,191 @@
+package net.radai;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.glassfish.grizzly.IOStrategy;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * runs a workload once per cell of a matrix of transport settings - io strategy, selector runners, worker threads -
+ * and client thread counts, closed loop, producing a row of throughput, latency percentiles and process cpu per cell.
+ * each cell gets a fresh transport and a short warmup that is not measured.
+ * <br>
+ * worker thread counts only matter to strategies that hand work off to the worker pool, so same-thread cells are
+ * run once per selector runner count, with the default (unused) worker pool.
+ * <br>
+ * cpu is the whole process's, so an in-process server (the default {@link EmbeddedRpcbind}) is charged to the
+ * client settings being compared. run with -Drpcbind.system to measure the client side alone.
+ * @author Radai Rosenblatt
+ */
+public class TransportMatrixRunner {
+    private final long cellMillis;
+    private final long warmupMillis;
+
+    public TransportMatrixRunner(long cellMillis, long warmupMillis) {
+        this.cellMillis = cellMillis;
+        this.warmupMillis = warmupMillis;
+    }
+
+    /**
+     * sets up whatever the workload runs on for a single cell. everything it builds has to be released by
+     * closing the returned operation
+     */
+    public interface Workload {
+        Operation prepare(IOStrategy ioStrategy, int selectorRunners, int workerThreads) throws Exception;
+    }
+
+    /**
+     * a single operation (connect + close, connect + rpc + close, ...). called by many threads at once
+     */
+    public interface Operation extends Closeable {
+        void execute() throws Exception;
+    }
+
+    /**
+     * @param strategies names, as in {@link SharedTcpTransport#ioStrategyFor(String)}
+     * @param selectorRunners 0 for the grizzly default
+     * @param workerThreads 0 for the io strategy's default
+     */
+    public List<Cell> run(String workloadName, Workload workload, String[] strategies, int[] selectorRunners, int[] workerThreads, int[] clientThreads) throws Exception {
+        List<Cell> cells = new ArrayList<>();
+        for (String strategy : strategies) {
+            for (int runners : selectorRunners) {
+                int[] workers = "same".equals(strategy) ? new int[] {0} : workerThreads;
+                for (int workerCount : workers) {
+                    for (int threads : clientThreads) {
+                        Cell cell = runCell(workloadName, workload, strategy, runners, workerCount, threads);
+                        System.err.println(cell.toRow()); //as we go, a full matrix takes a while
+                        cells.add(cell);
+                    }
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * cpu % and cpu us/op are the whole process's, server included if it runs in-process
+     */
+    public static String header() {
+        return String.format("%-10s %-8s %8s %8s %8s %12s %10s %10s %10s %8s %10s %8s",
+                "workload", "strategy", "runners", "workers", "threads", "ops/sec", "p50 us", "p99 us", "p99.9 us", "cpu %", "cpu us/op", "errors");
+    }
+
+    private Cell runCell(String workloadName, Workload workload, String strategy, int runners, int workers, int threads) throws Exception {
+        final Cell cell = new Cell(workloadName, strategy, runners, workers, threads);
+        final ConcurrentHistogram latencies = new ConcurrentHistogram(3);
+        final AtomicLong errors = new AtomicLong(0);
+        final AtomicReference<Throwable> lastError = new AtomicReference<>();
+        final long measureFrom = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        final long measureUntil = measureFrom + TimeUnit.MILLISECONDS.toNanos(cellMillis);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (final Operation operation = workload.prepare(SharedTcpTransport.ioStrategyFor(strategy), runners, workers)) {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        long now;
+                        while ((now = System.nanoTime()) < measureUntil) {
+                            try {
+                                operation.execute();
+                                if (now >= measureFrom) {
+                                    latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - now));
+                                }
+                            } catch (Exception e) {
+                                if (now >= measureFrom) { //warmup failures dont count
+                                    errors.incrementAndGet();
+                                    lastError.set(e);
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            long sleepNanos = measureFrom - System.nanoTime();
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+            long cpuAtStart = processCpuNanos();
+            long wallAtStart = System.nanoTime();
+            for (Future<Void> future : futures) {
+                future.get(); //block
+            }
+            //operations started before measureUntil finish after it, so the window is however long that took
+            cell.cpuNanos = cpuAtStart < 0 ? -1 : processCpuNanos() - cpuAtStart;
+            cell.elapsedNanos = System.nanoTime() - wallAtStart;
+        } finally {
+            executor.shutdown();
+        }
+        cell.latencies = latencies;
+        cell.errors = errors.get();
+        cell.lastError = lastError.get();
+        return cell;
+    }
+
+    /**
+     * @return cpu time used by the whole process (all threads, including the transport's), -1 if unavailable
+     */
+    private static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    public static class Cell {
+        private final String workload;
+        private final String strategy;
+        private final int selectorRunners;
+        private final int workerThreads;
+        private final int clientThreads;
+        private Histogram latencies;
+        private long elapsedNanos;
+        private long cpuNanos;
+        private long errors;
+        private Throwable lastError;
+
+        private Cell(String workload, String strategy, int selectorRunners, int workerThreads, int clientThreads) {
+            this.workload = workload;
+            this.strategy = strategy;
+            this.selectorRunners = selectorRunners;
+            this.workerThreads = workerThreads;
+            this.clientThreads = clientThreads;
+        }
+
+        public double getOpsPerSec() {
+            return latencies.getTotalCount() / (elapsedNanos / 1e9);
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public Throwable getLastError() {
+            return lastError;
+        }
+
+        public String toRow() {
+            long ops = latencies.getTotalCount();
+            return String.format("%-10s %-8s %8s %8s %8d %12.1f %10d %10d %10d %8.1f %10.1f %8d",
+                    workload, strategy, selectorRunners == 0 ? "default" : String.valueOf(selectorRunners),
+                    workerThreads == 0 ? "default" : String.valueOf(workerThreads), clientThreads, getOpsPerSec(),
+                    latencies.getValueAtPercentile(50.0), latencies.getValueAtPercentile(99.0), latencies.getValueAtPercentile(99.9),
+                    cpuNanos < 0 ? -1.0 : 100.0 * cpuNanos / elapsedNanos,
+                    cpuNanos < 0 || ops == 0 ? -1.0 : cpuNanos / 1000.0 / ops, errors);
+        }
+    }
+}
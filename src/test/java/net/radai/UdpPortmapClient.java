@@ -0,0 +1,226 @@
+package net.radai;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * portmap GETPORT over udp: one datagram socket shared by all calling threads, replies matched to calls by xid,
+ * and unanswered calls retransmitted with exponential backoff (initial timeout, doubling up to maxRetransmits times).
+ * no handshake and no TIME_WAIT socket per lookup. rpc messages are encoded by hand (rfc 5531) since oncrpc4j's
+ * client side is tcp/grizzly centric.
+ * @author Radai Rosenblatt
+ */
+public class UdpPortmapClient implements Closeable {
+    private static final int CALL = 0;
+    private static final int REPLY = 1;
+    private static final int RPC_VERSION = 2;
+    private static final int MSG_ACCEPTED = 0;
+    private static final int SUCCESS = 0;
+
+    private final DatagramChannel channel;
+    private final long initialTimeoutMillis;
+    private final int maxRetransmits;
+    private final ConcurrentMap<Integer, PendingCall> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextXid = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final Thread receiver;
+    private final Meter retransmits;
+    private final Meter timeouts;
+    private final Meter unreachable;
+
+    public UdpPortmapClient(InetSocketAddress rpcbindAddress, long initialTimeoutMillis, int maxRetransmits, MetricRegistry metrics) throws IOException {
+        this.initialTimeoutMillis = initialTimeoutMillis;
+        this.maxRetransmits = maxRetransmits;
+        this.retransmits = metrics.meter("udp.retransmits");
+        this.timeouts = metrics.meter("udp.timeouts");
+        this.unreachable = metrics.meter("udp.unreachable");
+        channel = DatagramChannel.open();
+        channel.connect(rpcbindAddress); //only ever hear from rpcbind
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        }, "udp-portmap-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * @return the port, 0 if the program is not registered
+     */
+    public int getPort(int prog, int vers, int protocol) throws IOException, InterruptedException, TimeoutException {
+        try {
+            return getPortAsync(prog, vers, protocol).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw (TimeoutException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public CompletableFuture<Integer> getPortAsync(int prog, int vers, int protocol) {
+        int xid = nextXid.getAndIncrement();
+        ByteBuffer request = ByteBuffer.allocate(56);
+        request.putInt(xid).putInt(CALL).putInt(RPC_VERSION)
+                .putInt(PortmapProtocol.PROGRAM).putInt(PortmapProtocol.VERSION).putInt(PortmapProtocol.PROC_GETPORT)
+                .putInt(0).putInt(0) //cred: AUTH_NONE, empty body
+                .putInt(0).putInt(0) //verf: AUTH_NONE, empty body
+                .putInt(prog).putInt(vers).putInt(protocol).putInt(0);
+        request.flip();
+        PendingCall call = new PendingCall(xid, request);
+        pending.put(xid, call);
+        transmit(call, initialTimeoutMillis);
+        return call.future;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        timer.shutdownNow();
+        try {
+            receiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PendingCall call : pending.values()) {
+            call.future.completeExceptionally(new IOException("client closed"));
+        }
+        pending.clear();
+    }
+
+    private void transmit(final PendingCall call, final long timeoutMillis) {
+        try {
+            channel.write(call.request.duplicate());
+        } catch (IOException e) {
+            if (pending.remove(call.xid, call)) {
+                call.future.completeExceptionally(e);
+            }
+            return;
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.get(call.xid) != call) {
+                    return; //answered
+                }
+                if (call.retransmissions.incrementAndGet() > maxRetransmits) {
+                    if (pending.remove(call.xid, call)) {
+                        timeouts.mark();
+                        call.future.completeExceptionally(new TimeoutException("no reply for xid " + call.xid + " after " + maxRetransmits + " retransmits"));
+                    }
+                    return;
+                }
+                retransmits.mark();
+                transmit(call, timeoutMillis * 2);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void receiveLoop() {
+        ByteBuffer reply = ByteBuffer.allocate(8 * 1024);
+        long backoffMillis = 0;
+        while (channel.isOpen()) {
+            try {
+                reply.clear();
+                channel.read(reply);
+                backoffMillis = 0;
+                reply.flip();
+                handleReply(reply);
+            } catch (PortUnreachableException e) {
+                //icmp port unreachable - nobody listening (yet). calls time out on their own, just dont spin
+                unreachable.mark();
+                backoffMillis = backOff(backoffMillis);
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    System.err.println("while reading from rpcbind");
+                    e.printStackTrace();
+                    backoffMillis = backOff(backoffMillis);
+                }
+            }
+        }
+    }
+
+    /**
+     * sleeps for twice as long as last time (starting at 1ms, up to the initial call timeout)
+     * @return how long it slept
+     */
+    private long backOff(long lastMillis) {
+        long millis = Math.min(Math.max(1, lastMillis * 2), Math.max(1, initialTimeoutMillis));
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return millis;
+    }
+
+    private void handleReply(ByteBuffer reply) {
+        if (reply.remaining() < 8) {
+            return; //runt
+        }
+        int xid = reply.getInt();
+        if (reply.getInt() != REPLY) {
+            return;
+        }
+        PendingCall call = pending.remove(xid);
+        if (call == null) {
+            return; //duplicate reply to a retransmitted call, or a call we already gave up on
+        }
+        try {
+            if (reply.getInt() != MSG_ACCEPTED) {
+                call.future.completeExceptionally(new IOException("rpc call denied"));
+                return;
+            }
+            reply.getInt(); //verf flavor
+            int verfLength = reply.getInt();
+            reply.position(reply.position() + ((verfLength + 3) & ~3)); //opaque data is padded to 4 bytes
+            int acceptStat = reply.getInt();
+            if (acceptStat != SUCCESS) {
+                call.future.completeExceptionally(new IOException("rpc call not accepted, accept_stat " + acceptStat));
+                return;
+            }
+            call.future.complete(reply.getInt());
+        } catch (RuntimeException e) { //BufferUnderflowException, IllegalArgumentException
+            call.future.completeExceptionally(new IOException("malformed reply for xid " + xid, e));
+        }
+    }
+
+    private static class PendingCall {
+        private final int xid;
+        private final ByteBuffer request;
+        private final AtomicInteger retransmissions = new AtomicInteger(0);
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        private PendingCall(int xid, ByteBuffer request) {
+            this.xid = xid;
+            this.request = request;
+        }
+    }
+}
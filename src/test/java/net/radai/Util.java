@@ -1,5 +1,8 @@
 package net.radai;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
 /**
  * @author Radai Rosenblatt
  */
@@ -11,4 +14,16 @@ public class Util {
         }
         return cause;
     }
+
+    /**
+     * @return number of file descriptors this process has open, or -1 if /proc is not available
+     */
+    public static int countOpenFileDescriptors() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+
+    public static int countLiveThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
 }
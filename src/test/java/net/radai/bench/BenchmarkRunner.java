@@ -0,0 +1,33 @@
+package net.radai.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * runs the benchmarks in this package once per thread count, with the gc (allocation) profiler on,
+ * leaving a json result per thread count under target/ for comparing between runs.
+ * <br>
+ * -Dbench.include=regexp picks benchmarks (default all of them), -Dbench.threads=1,4,16 picks thread counts.
+ * run with "mvn -Pbenchmark verify"
+ * @author Radai Rosenblatt
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        String include = System.getProperty("bench.include", "net\\.radai\\.bench\\..*");
+        String[] threadCounts = System.getProperty("bench.threads", "1,4,16").split(",");
+        for (String threadCount : threadCounts) {
+            int threads = Integer.parseInt(threadCount.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/jmh-" + threads + "-threads.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package net.radai.bench;
+
+import org.dcache.xdr.IpProtocolType;
+import org.dcache.xdr.OncRpcClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * connect + close against a {@link LoopbackServer}, with a plain blocking {@link SocketChannel}
+ * and with an {@link OncRpcClient} (which builds and tears down a grizzly transport of its own)
+ * @author Radai Rosenblatt
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ConnectBenchmark {
+    private LoopbackServer server;
+    private InetSocketAddress address;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new LoopbackServer();
+        address = server.getAddress();
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public void nioConnect(Blackhole blackhole) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            blackhole.consume(channel.isConnected());
+        }
+    }
+
+    @Benchmark
+    public void oncrpc4jConnect(Blackhole blackhole) throws IOException {
+        try (OncRpcClient rpcClient = new OncRpcClient(address, IpProtocolType.TCP)) {
+            blackhole.consume(rpcClient.connect());
+        }
+    }
+}
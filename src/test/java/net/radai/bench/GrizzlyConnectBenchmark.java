@@ -0,0 +1,75 @@
+package net.radai.bench;
+
+import net.radai.SharedTcpTransport;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * grizzly connect + close against a {@link LoopbackServer}, with a transport per connect (what
+ * DisconnectLeakTest does) and with many connections on one {@link SharedTcpTransport}
+ * @author Radai Rosenblatt
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GrizzlyConnectBenchmark {
+    @Param({"same", "worker", "leader"})
+    public String ioStrategy;
+
+    private LoopbackServer server;
+    private InetSocketAddress address;
+    private SharedTcpTransport sharedTransport;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new LoopbackServer();
+        address = server.getAddress();
+        sharedTransport = new SharedTcpTransport(SharedTcpTransport.ioStrategyFor(ioStrategy));
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        sharedTransport.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void transportPerConnect(Blackhole blackhole) throws Exception {
+        TCPNIOTransport transport = TCPNIOTransportBuilder.newInstance().setIOStrategy(SharedTcpTransport.ioStrategyFor(ioStrategy)).build();
+        transport.start();
+        try {
+            Connection connection = transport.connect(address).get();
+            blackhole.consume(connection);
+            connection.close().get();
+        } finally {
+            transport.shutdown().get();
+        }
+    }
+
+    @Benchmark
+    public void sharedTransportConnect(Blackhole blackhole) throws Exception {
+        Connection connection = sharedTransport.connect(address);
+        blackhole.consume(connection);
+        connection.close().get();
+    }
+}
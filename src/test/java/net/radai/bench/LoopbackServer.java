@@ -0,0 +1,54 @@
+package net.radai.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * a loopback tcp server on an ephemeral port that accepts connections and immediately closes them.
+ * a connect target that costs as little as possible on the server side.
+ * @author Radai Rosenblatt
+ */
+public class LoopbackServer implements Closeable {
+    private final ServerSocketChannel serverChannel;
+    private final Thread acceptor;
+
+    public LoopbackServer() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 4096);
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (serverChannel.isOpen()) {
+                    try {
+                        SocketChannel accepted = serverChannel.accept();
+                        accepted.close();
+                    } catch (IOException e) {
+                        if (serverChannel.isOpen()) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }, "loopback-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package net.radai.bench;
+
+import net.radai.EmbeddedRpcbind;
+import net.radai.PipelinedPortmapClient;
+import net.radai.PortmapProtocol;
+import net.radai.SharedRpcClientFactory;
+import net.radai.SharedTcpTransport;
+import org.dcache.xdr.XdrTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GETPORT calls over a single connection to an {@link EmbeddedRpcbind}, pipelined at depths 1 through 256.
+ * depth 1 is the one-call-at-a-time behaviour of GenericPortmapClient
+ * @author Radai Rosenblatt
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelinedPortmapBenchmark {
+    private static final int CALLS_PER_INVOCATION = 256;
+
+    @Param({"1", "2", "4", "8", "16", "32", "64", "128", "256"})
+    public int depth;
+
+    private EmbeddedRpcbind rpcbind;
+    private SharedRpcClientFactory clientFactory;
+    private SharedRpcClientFactory.Client rpcClient;
+    private ScheduledExecutorService timer;
+    private PipelinedPortmapClient pipeline;
+
+    @Setup
+    public void setup() throws Exception {
+        rpcbind = new EmbeddedRpcbind();
+        clientFactory = new SharedRpcClientFactory(SharedTcpTransport.ioStrategyFor("same"));
+        rpcClient = clientFactory.newClient(rpcbind.getTcpAddress());
+        XdrTransport transport = rpcClient.connect();
+        timer = Executors.newSingleThreadScheduledExecutor();
+        pipeline = new PipelinedPortmapClient(transport, depth, Math.max(1, depth / 4), TimeUnit.SECONDS.toMillis(10), timer);
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        timer.shutdownNow();
+        rpcClient.close();
+        clientFactory.close();
+        rpcbind.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS_PER_INVOCATION)
+    public int pipelinedGetPort() throws Exception {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Integer>[] futures = new CompletableFuture[CALLS_PER_INVOCATION];
+        for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+            futures[i] = pipeline.getPort(EmbeddedRpcbind.BOB_PROGRAM, EmbeddedRpcbind.BOB_VERSION, PortmapProtocol.IPPROTO_TCP);
+        }
+        pipeline.flush();
+        int sum = 0;
+        for (CompletableFuture<Integer> future : futures) {
+            sum += future.get();
+        }
+        return sum;
+    }
+}
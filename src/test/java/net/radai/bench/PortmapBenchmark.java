@@ -0,0 +1,76 @@
+package net.radai.bench;
+
+import com.codahale.metrics.MetricRegistry;
+import net.radai.EmbeddedRpcbind;
+import net.radai.OncRpcClientPool;
+import org.dcache.xdr.IpProtocolType;
+import org.dcache.xdr.OncRpcClient;
+import org.dcache.xdr.portmap.GenericPortmapClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a full {@link GenericPortmapClient#getPort(int, int, String)} round trip, over a fresh client per call and
+ * over a pooled connection. runs against an {@link EmbeddedRpcbind}, or against the rpcbind on 127.0.0.1:port
+ * when given -Drpcbind.port=port (which is expected to have the bogus "bob" program registered, see DisconnectLeakTest)
+ * @author Radai Rosenblatt
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PortmapBenchmark {
+    private EmbeddedRpcbind rpcbind;
+    private InetAddress address;
+    private int port;
+    private OncRpcClientPool pool;
+
+    @Setup
+    public void setup() throws Exception {
+        address = InetAddress.getByName("127.0.0.1");
+        Integer systemPort = Integer.getInteger("rpcbind.port");
+        if (systemPort != null) {
+            port = systemPort;
+        } else {
+            rpcbind = new EmbeddedRpcbind();
+            port = rpcbind.getTcpAddress().getPort();
+        }
+        pool = new OncRpcClientPool(64, 64, TimeUnit.MINUTES.toMillis(1), new MetricRegistry());
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        pool.close();
+        if (rpcbind != null) {
+            rpcbind.close();
+        }
+    }
+
+    @Benchmark
+    public String getPortWithNewClient() throws Exception {
+        try (OncRpcClient rpcClient = new OncRpcClient(address, IpProtocolType.TCP, port)) {
+            return new GenericPortmapClient(rpcClient.connect()).getPort(666, 666, "tcp");
+        }
+    }
+
+    @Benchmark
+    public String getPortWithPooledClient() throws Exception {
+        try (OncRpcClientPool.Lease lease = pool.borrow(address, IpProtocolType.TCP, port)) {
+            return new GenericPortmapClient(lease.getTransport()).getPort(666, 666, "tcp");
+        }
+    }
+}